@@ -8,4 +8,4 @@ import android.graphics.drawable.Drawable
  * @Author: wukaicheng
  * @CreateDate: 2022/3/6 19:26
  */
-data class InstalledAppBean(val name:String, val icon: Drawable, val packageName:String, val sourceDir:String, val isInstall:Boolean)
+data class InstalledAppBean(val name:String, val icon: Drawable?, val packageName:String, val sourceDir:String, val isInstall:Boolean)
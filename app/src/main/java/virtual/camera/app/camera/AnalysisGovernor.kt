@@ -0,0 +1,168 @@
+package virtual.camera.app.camera
+
+import android.content.Context
+import android.os.Build
+import android.os.PowerManager
+import android.os.SystemClock
+import android.util.Size
+import androidx.camera.core.ImageAnalysis
+import androidx.camera.core.ImageProxy
+import kotlin.math.ceil
+
+/**
+ * Analysis Governor - keeps frame analysis within a per-frame latency budget
+ * Wraps an analyzer, measures how long each frame takes and analyzes only every Nth frame when
+ * the average exceeds the budget; the other frames are closed right away. Sustained overload or
+ * thermal throttling steps the analysis resolution down, sustained headroom steps it back up.
+ * Runs entirely on the analysis executor thread.
+ */
+class AnalysisGovernor(
+    context: Context,
+    private val delegate: ImageAnalysis.Analyzer,
+    private val budgetMs: Float = DEFAULT_BUDGET_MS
+) : ImageAnalysis.Analyzer {
+
+    interface Listener {
+        /**
+         * Called about once per second with the analysis statistics of the last period
+         */
+        fun onAnalysisStats(stats: Stats)
+
+        /**
+         * Called when the analysis use case should be rebound at another target resolution
+         */
+        fun onResolutionChanged(resolution: Size)
+    }
+
+    data class Stats(
+        val effectiveFps: Float,
+        val deliveredFps: Float,
+        val droppedFrames: Long,
+        val totalDropped: Long,
+        val averageLatencyMs: Float,
+        val skipInterval: Int,
+        val resolution: Size,
+        val thermalStatus: Int
+    )
+
+    var listener: Listener? = null
+
+    private val powerManager = context.getSystemService(Context.POWER_SERVICE) as PowerManager?
+
+    private var resolutionIndex = RESOLUTIONS.indexOf(Size(CameraXManager.IMAGE_WIDTH, CameraXManager.IMAGE_HEIGHT))
+        .takeIf { it >= 0 } ?: RESOLUTIONS.size / 2
+
+    val resolution: Size
+        get() = RESOLUTIONS[resolutionIndex]
+
+    // exponentially weighted average of the analyzer latency
+    private var averageLatencyMs = 0f
+    private var skipInterval = 1
+    private var frameIndex = 0L
+
+    private var periodStart = 0L
+    private var periodDelivered = 0
+    private var periodAnalyzed = 0
+    private var periodDropped = 0L
+    private var totalDropped = 0L
+    private var overloadedPeriods = 0
+    private var idlePeriods = 0
+
+    override fun analyze(image: ImageProxy) {
+        val now = SystemClock.elapsedRealtime()
+        if (periodStart == 0L) periodStart = now
+        periodDelivered++
+        if (frameIndex++ % skipInterval != 0L) {
+            periodDropped++
+            image.close()
+        } else {
+            val start = SystemClock.elapsedRealtimeNanos()
+            // the delegate closes the image
+            delegate.analyze(image)
+            val latencyMs = (SystemClock.elapsedRealtimeNanos() - start) / 1_000_000f
+            averageLatencyMs = if (averageLatencyMs == 0f) latencyMs
+            else averageLatencyMs + LATENCY_SMOOTHING * (latencyMs - averageLatencyMs)
+            periodAnalyzed++
+            // analyze 1 of N frames so the analyzer gets N frame times for each frame it takes
+            skipInterval = ceil(averageLatencyMs / budgetMs).toInt().coerceIn(1, MAX_SKIP_INTERVAL)
+        }
+        if (now - periodStart >= PERIOD_MS) {
+            endPeriod(now)
+        }
+    }
+
+    private fun endPeriod(now: Long) {
+        val seconds = (now - periodStart) / 1000f
+        val thermalStatus = thermalStatus()
+        totalDropped += periodDropped
+        val stats = Stats(
+            effectiveFps = periodAnalyzed / seconds,
+            deliveredFps = periodDelivered / seconds,
+            droppedFrames = periodDropped,
+            totalDropped = totalDropped,
+            averageLatencyMs = averageLatencyMs,
+            skipInterval = skipInterval,
+            resolution = resolution,
+            thermalStatus = thermalStatus
+        )
+        periodStart = now
+        periodDelivered = 0
+        periodAnalyzed = 0
+        periodDropped = 0
+        listener?.onAnalysisStats(stats)
+        adjustResolution(thermalStatus)
+    }
+
+    private fun adjustResolution(thermalStatus: Int) {
+        val throttled = thermalStatus >= THERMAL_STEP_DOWN_STATUS
+        if (throttled || skipInterval >= OVERLOAD_SKIP_INTERVAL) {
+            overloadedPeriods++
+            idlePeriods = 0
+        } else if (skipInterval == 1 && averageLatencyMs < budgetMs * IDLE_LOAD && thermalStatus < THERMAL_STEP_UP_LIMIT) {
+            idlePeriods++
+            overloadedPeriods = 0
+        } else {
+            overloadedPeriods = 0
+            idlePeriods = 0
+        }
+        val newIndex = when {
+            (throttled || overloadedPeriods >= STEP_DOWN_PERIODS) && resolutionIndex > 0 -> resolutionIndex - 1
+            idlePeriods >= STEP_UP_PERIODS && resolutionIndex < RESOLUTIONS.size - 1 -> resolutionIndex + 1
+            else -> return
+        }
+        resolutionIndex = newIndex
+        overloadedPeriods = 0
+        idlePeriods = 0
+        // the latency measured at the old resolution no longer applies
+        averageLatencyMs = 0f
+        skipInterval = 1
+        listener?.onResolutionChanged(resolution)
+    }
+
+    private fun thermalStatus(): Int {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) return THERMAL_STATUS_NONE
+        return powerManager?.currentThermalStatus ?: THERMAL_STATUS_NONE
+    }
+
+    companion object {
+        const val DEFAULT_BUDGET_MS = 33f
+
+        /**
+         * Analysis target resolutions, lowest first
+         */
+        val RESOLUTIONS = listOf(Size(256, 256), Size(384, 384), Size(512, 512), Size(768, 768))
+
+        private const val LATENCY_SMOOTHING = 0.2f
+        private const val MAX_SKIP_INTERVAL = 8
+        private const val PERIOD_MS = 1000L
+        private const val OVERLOAD_SKIP_INTERVAL = 3
+        private const val IDLE_LOAD = 0.5f
+        private const val STEP_DOWN_PERIODS = 3
+        private const val STEP_UP_PERIODS = 10
+
+        // PowerManager.THERMAL_STATUS_* (API 29)
+        private const val THERMAL_STATUS_NONE = 0
+        private const val THERMAL_STEP_DOWN_STATUS = 3 // THERMAL_STATUS_SEVERE
+        private const val THERMAL_STEP_UP_LIMIT = 2 // below THERMAL_STATUS_MODERATE
+    }
+}
@@ -0,0 +1,289 @@
+package virtual.camera.app.camera
+
+import android.graphics.ImageFormat
+import android.graphics.Rect
+import android.graphics.YuvImage
+import android.os.SystemClock
+import androidx.camera.core.ImageProxy
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+
+/**
+ * Best Frame Selector - keeps the last few qualifying analysis frames for instant capture
+ * Frames are offered with their quality scores (see [ImageQualityAnalyzer.frameSelector]);
+ * those that pass the quality thresholds are copied as NV21 into one of [capacity] ring slots
+ * whose buffers come from, and go back to, a [ByteArrayPool]. A capture returns the sharpest
+ * recent frame without another shutter round trip. Memory stays at [capacity] frames, plus
+ * the copies of frames being encoded.
+ */
+class BestFrameSelector(
+    private val capacity: Int = DEFAULT_CAPACITY,
+    private val pool: ByteArrayPool = ByteArrayPool(capacity)
+) {
+
+    /**
+     * An encoded frame; [rotationDegrees] still has to be applied to display it upright
+     */
+    class Capture(
+        val jpeg: ByteArray,
+        val width: Int,
+        val height: Int,
+        val rotationDegrees: Int,
+        val sharpness: Float,
+        val timestampNanos: Long
+    )
+
+    /**
+     * A copy of a ring frame, NV21 [data] borrowed from the pool
+     */
+    internal class Frame(
+        val data: ByteArray,
+        val width: Int,
+        val height: Int,
+        val rotationDegrees: Int,
+        val sharpness: Float,
+        val timestampNanos: Long
+    )
+
+    private class Slot {
+        var data: ByteArray? = null
+        var width = 0
+        var height = 0
+        var rotationDegrees = 0
+        var sharpness = 0f
+        var timestampNanos = 0L
+        var capturedAt = 0L
+    }
+
+    private val slots = Array(capacity) { Slot() }
+    private var next = 0
+    private var row = ByteArray(0)
+
+    /**
+     * Milliseconds since boot, frame ages are measured with it
+     */
+    internal var clock: () -> Long = SystemClock::elapsedRealtime
+
+    /**
+     * Offer an analysis frame with its scores; the image is only read, not closed
+     */
+    @Synchronized
+    fun offer(image: ImageProxy, blurScore: Float, brightnessScore: Float, contrastScore: Float) {
+        if (blurScore < CameraXManager.BLUR_THRESHOLD ||
+            brightnessScore < CameraXManager.QUALITY_THRESHOLD || brightnessScore > MAX_BRIGHTNESS ||
+            contrastScore < MIN_CONTRAST) {
+            return
+        }
+        if (image.format != ImageFormat.YUV_420_888) return
+        val slot = slots[next]
+        next = (next + 1) % capacity
+        val width = image.width
+        val height = image.height
+        val size = width * height * 3 / 2
+        var data = slot.data
+        if (data == null || data.size < size) {
+            data?.let { pool.release(it) }
+            data = pool.acquire(size)
+            slot.data = data
+        }
+        copyToNv21(image, data)
+        slot.width = width
+        slot.height = height
+        slot.rotationDegrees = image.imageInfo.rotationDegrees
+        slot.sharpness = blurScore
+        slot.timestampNanos = image.imageInfo.timestamp
+        slot.capturedAt = clock()
+    }
+
+    /**
+     * Whether a frame of the last [maxAgeMs] is available
+     */
+    @Synchronized
+    fun hasFrame(maxAgeMs: Long = DEFAULT_MAX_AGE_MS): Boolean = best(maxAgeMs) != null
+
+    /**
+     * Encode the sharpest frame of the last [maxAgeMs] as JPEG, null if there is none
+     * The frame is copied under the lock and encoded outside of it, so [offer] is not held up.
+     * @param minTimestampNanos only frames with an [ImageProxy] timestamp at or after this one
+     * @param upright rotate the image so that it no longer needs [Capture.rotationDegrees]
+     */
+    fun captureJpeg(
+        quality: Int = JPEG_QUALITY,
+        maxAgeMs: Long = DEFAULT_MAX_AGE_MS,
+        minTimestampNanos: Long = 0L,
+        upright: Boolean = false
+    ): Capture? {
+        val frame = copyBest(maxAgeMs, minTimestampNanos) ?: return null
+        var data = frame.data
+        var width = frame.width
+        var height = frame.height
+        var rotation = frame.rotationDegrees
+        try {
+            if (upright && rotation % 360 != 0) {
+                // rotated in NV21, so the frame is encoded once
+                val rotated = pool.acquire(width * height * 3 / 2)
+                rotateNv21(data, width, height, rotation, rotated)
+                pool.release(data)
+                data = rotated
+                if (rotation % 180 != 0) {
+                    width = frame.height
+                    height = frame.width
+                }
+                rotation = 0
+            }
+            val stream = ByteArrayOutputStream(width * height / 4)
+            YuvImage(data, ImageFormat.NV21, width, height, null)
+                .compressToJpeg(Rect(0, 0, width, height), quality, stream)
+            return Capture(stream.toByteArray(), width, height, rotation, frame.sharpness, frame.timestampNanos)
+        } finally {
+            pool.release(data)
+        }
+    }
+
+    /**
+     * Copy the sharpest frame of the last [maxAgeMs] out of the ring, null if there is none;
+     * the caller returns [Frame.data] to the pool
+     */
+    @Synchronized
+    internal fun copyBest(maxAgeMs: Long, minTimestampNanos: Long = 0L): Frame? {
+        val slot = best(maxAgeMs, minTimestampNanos) ?: return null
+        val size = slot.width * slot.height * 3 / 2
+        val data = pool.acquire(size)
+        System.arraycopy(slot.data!!, 0, data, 0, size)
+        return Frame(data, slot.width, slot.height, slot.rotationDegrees, slot.sharpness, slot.timestampNanos)
+    }
+
+    /**
+     * Drop every frame and return the buffers to the pool
+     */
+    @Synchronized
+    fun clear() {
+        for (slot in slots) {
+            slot.data?.let { pool.release(it) }
+            slot.data = null
+            slot.capturedAt = 0L
+        }
+        next = 0
+    }
+
+    private fun best(maxAgeMs: Long, minTimestampNanos: Long = 0L): Slot? {
+        val oldest = clock() - maxAgeMs
+        var best: Slot? = null
+        for (slot in slots) {
+            if (slot.data == null || slot.capturedAt == 0L || slot.capturedAt < oldest) continue
+            if (slot.timestampNanos < minTimestampNanos) continue
+            if (best == null || slot.sharpness > best.sharpness) best = slot
+        }
+        return best
+    }
+
+    /**
+     * Pack the three planes as NV21 (Y rows, then interleaved V/U rows), honoring the strides
+     */
+    private fun copyToNv21(image: ImageProxy, out: ByteArray) {
+        val width = image.width
+        val height = image.height
+        val planes = image.planes
+        var offset = 0
+
+        val yPlane = planes[0]
+        offset = copyPlane(yPlane.buffer, yPlane.rowStride, yPlane.pixelStride, width, height, out, offset, 1)
+
+        val chromaWidth = width / 2
+        val chromaHeight = height / 2
+        // V first for NV21, each chroma sample takes every other output byte
+        copyPlane(planes[2].buffer, planes[2].rowStride, planes[2].pixelStride, chromaWidth, chromaHeight, out, offset, 2)
+        copyPlane(planes[1].buffer, planes[1].rowStride, planes[1].pixelStride, chromaWidth, chromaHeight, out, offset + 1, 2)
+    }
+
+    private fun copyPlane(
+        buffer: ByteBuffer,
+        rowStride: Int,
+        pixelStride: Int,
+        width: Int,
+        height: Int,
+        out: ByteArray,
+        offset: Int,
+        outStride: Int
+    ): Int {
+        val base = buffer.position()
+        var o = offset
+        try {
+            if (pixelStride == 1 && outStride == 1) {
+                for (y in 0 until height) {
+                    buffer.position(base + y * rowStride)
+                    buffer.get(out, o, width)
+                    o += width
+                }
+            } else {
+                val rowBytes = (width - 1) * pixelStride + 1
+                if (row.size < rowBytes) row = ByteArray(rowBytes)
+                val data = row
+                for (y in 0 until height) {
+                    buffer.position(base + y * rowStride)
+                    buffer.get(data, 0, rowBytes)
+                    var i = 0
+                    while (i < rowBytes) {
+                        out[o] = data[i]
+                        o += outStride
+                        i += pixelStride
+                    }
+                }
+            }
+        } finally {
+            buffer.position(base)
+        }
+        return o
+    }
+
+    companion object {
+        const val DEFAULT_CAPACITY = 4
+        const val DEFAULT_MAX_AGE_MS = 1000L
+        private const val JPEG_QUALITY = 90
+        private const val MAX_BRIGHTNESS = 230f
+        private const val MIN_CONTRAST = 20f
+
+        /**
+         * Rotate an NV21 frame clockwise by [rotationDegrees] (0, 90, 180 or 270) into [out];
+         * width and height must be even, the output is height x width for 90 and 270
+         */
+        internal fun rotateNv21(src: ByteArray, width: Int, height: Int, rotationDegrees: Int, out: ByteArray) {
+            val rotation = (rotationDegrees % 360 + 360) % 360
+            val outWidth = if (rotation % 180 == 0) width else height
+            val ySize = width * height
+            rotatePlane(src, 0, width, height, 1, rotation, out, 0, outWidth)
+            // V/U pairs move together
+            rotatePlane(src, ySize, width / 2, height / 2, 2, rotation, out, ySize, outWidth / 2)
+        }
+
+        private fun rotatePlane(
+            src: ByteArray,
+            srcOffset: Int,
+            width: Int,
+            height: Int,
+            sampleBytes: Int,
+            rotation: Int,
+            out: ByteArray,
+            outOffset: Int,
+            outWidth: Int
+        ) {
+            var s = srcOffset
+            for (y in 0 until height) {
+                for (x in 0 until width) {
+                    val ox: Int
+                    val oy: Int
+                    when (rotation) {
+                        90 -> { ox = height - 1 - y; oy = x }
+                        180 -> { ox = width - 1 - x; oy = height - 1 - y }
+                        270 -> { ox = y; oy = width - 1 - x }
+                        else -> { ox = x; oy = y }
+                    }
+                    val o = outOffset + (oy * outWidth + ox) * sampleBytes
+                    out[o] = src[s]
+                    if (sampleBytes == 2) out[o + 1] = src[s + 1]
+                    s += sampleBytes
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package virtual.camera.app.camera
+
+/**
+ * Byte Array Pool - reusable buffers for captured frames
+ * Arrays are bucketed by power of two capacity; a bucket keeps at most [maxPerBucket] arrays.
+ */
+class ByteArrayPool(private val maxPerBucket: Int = 2) {
+
+    /**
+     * A pooled array holding [length] valid bytes; call [recycle] once done with it
+     */
+    class PooledBytes internal constructor(
+        private val pool: ByteArrayPool,
+        val array: ByteArray,
+        val length: Int
+    ) {
+        private var recycled = false
+
+        fun recycle() {
+            if (recycled) return
+            recycled = true
+            pool.release(array)
+        }
+    }
+
+    private val buckets = HashMap<Int, ArrayDeque<ByteArray>>()
+
+    /**
+     * Get an array of at least [size] bytes
+     */
+    fun acquire(size: Int): ByteArray {
+        val capacity = capacityFor(size)
+        synchronized(buckets) {
+            buckets[capacity]?.removeLastOrNull()?.let { return it }
+        }
+        return ByteArray(capacity)
+    }
+
+    /**
+     * Wrap [length] bytes of an array from [acquire]
+     */
+    fun wrap(array: ByteArray, length: Int): PooledBytes = PooledBytes(this, array, length)
+
+    fun release(array: ByteArray) {
+        val capacity = array.size
+        // only arrays handed out by acquire have a bucket capacity
+        if (capacity != capacityFor(capacity)) return
+        synchronized(buckets) {
+            val bucket = buckets.getOrPut(capacity) { ArrayDeque() }
+            if (bucket.size < maxPerBucket) {
+                bucket.addLast(array)
+            }
+        }
+    }
+
+    fun clear() {
+        synchronized(buckets) {
+            buckets.clear()
+        }
+    }
+
+    private fun capacityFor(size: Int): Int {
+        if (size <= MIN_CAPACITY) return MIN_CAPACITY
+        return Integer.highestOneBit(size - 1) shl 1
+    }
+
+    companion object {
+        private const val MIN_CAPACITY = 4096
+    }
+}
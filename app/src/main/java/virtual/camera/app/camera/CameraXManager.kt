@@ -7,6 +7,9 @@ import androidx.camera.lifecycle.ProcessCameraProvider
 import androidx.camera.view.PreviewView
 import androidx.core.content.ContextCompat
 import androidx.lifecycle.LifecycleOwner
+import virtual.camera.app.ml.LivenessDetectionManager
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
 
@@ -23,6 +26,11 @@ class CameraXManager(
     private var imageCapture: ImageCapture? = null
     private var imageAnalyzer: ImageAnalysis? = null
     private var camera: Camera? = null
+    private var cameraSelector: CameraSelector? = null
+    private var analysisGovernor: AnalysisGovernor? = null
+    private var currentAnalyzer: ImageAnalysis.Analyzer? = null
+    private var currentBudgetMs = AnalysisGovernor.DEFAULT_BUDGET_MS
+    private var currentSelectBestFrames = false
     
     private val cameraExecutor: ExecutorService = Executors.newSingleThreadExecutor()
     
@@ -31,10 +39,12 @@ class CameraXManager(
         const val MIN_FRAMES = 10              // Minimum continuous frames
         const val TIMEOUT_MS = 60000L          // 60 seconds timeout
         const val QUALITY_THRESHOLD = 25.0f    // Brightness threshold
-        const val BLUR_THRESHOLD = 10.0f       // Blur tolerance
+        const val BLUR_THRESHOLD = 100.0f      // Blur tolerance (Laplacian variance)
         const val IMAGE_WIDTH = 512            // Output image width
         const val IMAGE_HEIGHT = 512           // Output image height
         const val MAX_FILE_SIZE = 300000       // 300KB max file size
+        const val FACE_FPS = 10f               // Frames per second given to liveness on a frame bus
+        const val FACE_DOWNSCALE = 2           // Bitmap downscale for liveness on a frame bus
     }
     
     // Callback interfaces
@@ -48,8 +58,67 @@ class CameraXManager(
         fun onCaptureError(error: String)
     }
     
+    /**
+     * Capture callback that borrows the encoded image buffer instead of copying it
+     */
+    interface BufferCaptureCallback {
+        /**
+         * [buffer] is only valid until this method returns; the image is closed right after,
+         * so copy (e.g. into [ByteArrayPool]) anything that has to outlive the call
+         */
+        fun onImageCaptured(buffer: ByteBuffer, rotationDegrees: Int)
+        fun onCaptureError(error: String)
+    }
+    
+    /**
+     * Capture callback receiving a copy in a pooled array, recycle it when done
+     */
+    interface PooledCaptureCallback {
+        fun onImageCaptured(image: ByteArrayPool.PooledBytes)
+        fun onCaptureError(error: String)
+    }
+    
+    /**
+     * Capture callback for [captureToChannel]
+     */
+    interface ChannelCaptureCallback {
+        fun onImageWritten(bytesWritten: Long)
+        fun onCaptureError(error: String)
+    }
+    
+    /**
+     * Capture callback for [captureBestFrame]
+     */
+    interface FrameCaptureCallback {
+        fun onFrameCaptured(capture: BestFrameSelector.Capture)
+        fun onCaptureError(error: String)
+    }
+    
+    /**
+     * Receives the analysis governor statistics, on the analysis thread
+     */
+    interface AnalysisStatsCallback {
+        fun onAnalysisStats(stats: AnalysisGovernor.Stats)
+    }
+    
+    /**
+     * Pool backing [captureImagePooled]
+     */
+    val captureBufferPool = ByteArrayPool()
+    
+    /**
+     * Recent sharp analysis frames, fed by the [ImageQualityAnalyzer] given to [startCamera],
+     * directly or on a [FrameBus], when it is started with selectBestFrames
+     */
+    val frameSelector = BestFrameSelector(pool = captureBufferPool)
+    
+    // Bitmap conversion shared by the consumers of the buses from createFrameBus
+    private val rgbConverter = YuvToRgbConverter()
+    
     private var cameraStateCallback: CameraStateCallback? = null
     private var imageCaptureCallback: ImageCaptureCallback? = null
+    @Volatile
+    private var analysisStatsCallback: AnalysisStatsCallback? = null
     
     fun setCameraStateCallback(callback: CameraStateCallback) {
         this.cameraStateCallback = callback
@@ -59,17 +128,35 @@ class CameraXManager(
         this.imageCaptureCallback = callback
     }
     
+    fun setAnalysisStatsCallback(callback: AnalysisStatsCallback?) {
+        this.analysisStatsCallback = callback
+    }
+    
     /**
      * Start camera preview with specified settings
+     * [analyzer] is usually an [ImageQualityAnalyzer], or a [FrameBus] to share each frame between
+     * quality, face and other analyzers. It runs under an [AnalysisGovernor] that keeps it within [analysisBudgetMs]
+     * per frame and rebinds the analysis use case when it changes the analysis resolution.
+     * With [selectBestFrames] an [ImageQualityAnalyzer], or each one registered on the bus, also
+     * copies each qualifying frame into [frameSelector] for [captureBestFrame]; this costs one NV21
+     * copy per such frame.
+     * An analyzer replaced by a different one is released, along with what is registered on it if
+     * it is a bus, and must not be passed in again.
      */
     fun startCamera(
         previewView: PreviewView,
         lensFacing: Int = CameraSelector.LENS_FACING_FRONT,
-        qualityAnalyzer: ImageQualityAnalyzer? = null
+        analyzer: ImageAnalysis.Analyzer? = null,
+        analysisBudgetMs: Float = AnalysisGovernor.DEFAULT_BUDGET_MS,
+        selectBestFrames: Boolean = false
     ) {
         val cameraProviderFuture = ProcessCameraProvider.getInstance(context)
         
         cameraProviderFuture.addListener({
+            val previousAnalyzer = currentAnalyzer
+            currentAnalyzer = analyzer
+            currentBudgetMs = analysisBudgetMs
+            currentSelectBestFrames = selectBestFrames
             try {
                 cameraProvider = cameraProviderFuture.get()
                 
@@ -88,26 +175,31 @@ class CameraXManager(
                     .build()
                 
                 // Build ImageAnalysis use case
-                imageAnalyzer = ImageAnalysis.Builder()
-                    .setTargetResolution(Size(IMAGE_WIDTH, IMAGE_HEIGHT))
-                    .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)
-                    .build()
-                    .also { analysis ->
-                        qualityAnalyzer?.let { analyzer ->
-                            analysis.setAnalyzer(cameraExecutor, analyzer)
-                        }
+                qualityAnalyzers(analyzer).forEach {
+                    if (selectBestFrames) {
+                        if (it.frameSelector == null) it.frameSelector = frameSelector
+                    } else if (it.frameSelector === frameSelector) {
+                        it.frameSelector = null
                     }
+                }
+                val governor = analyzer?.let {
+                    AnalysisGovernor(context, it, analysisBudgetMs)
+                }
+                governor?.listener = createGovernorListener(governor)
+                analysisGovernor = governor
+                imageAnalyzer = buildImageAnalysis(governor?.resolution ?: Size(IMAGE_WIDTH, IMAGE_HEIGHT), governor)
                 
                 // Select camera
-                val cameraSelector = CameraSelector.Builder()
+                val selector = CameraSelector.Builder()
                     .requireLensFacing(lensFacing)
                     .build()
+                cameraSelector = selector
                 
                 // Unbind existing use cases and bind new ones
                 cameraProvider?.unbindAll()
                 camera = cameraProvider?.bindToLifecycle(
                     lifecycleOwner,
-                    cameraSelector,
+                    selector,
                     preview,
                     imageCapture,
                     imageAnalyzer
@@ -118,41 +210,196 @@ class CameraXManager(
             } catch (e: Exception) {
                 cameraStateCallback?.onCameraError(e.message ?: "Unknown error")
             }
+            // unbound by now, or never bound if starting failed
+            if (previousAnalyzer !== analyzer) previousAnalyzer?.let { releaseAnalyzer(it) }
         }, ContextCompat.getMainExecutor(context))
     }
     
+    /**
+     * A [FrameBus] for [startCamera] sharing each analysis frame between [qualityAnalyzer] and,
+     * at most [faceFps] times a second, [liveness]. Liveness gets the frame as a pooled bitmap,
+     * downscaled by [faceDownscale], from a conversion registered on the bus; the frame stays open,
+     * holding back the stream, until liveness is done with it. Angles are captured from
+     * [frameSelector], so start the camera with selectBestFrames for upright full resolution captures.
+     */
+    fun createFrameBus(
+        qualityAnalyzer: ImageQualityAnalyzer,
+        liveness: LivenessDetectionManager? = null,
+        faceFps: Float = FACE_FPS,
+        faceDownscale: Int = FACE_DOWNSCALE
+    ): FrameBus {
+        val bus = FrameBus()
+        bus.register(qualityAnalyzer)
+        if (liveness != null) {
+            liveness.frameSelector = frameSelector
+            val bitmapKey = bus.registerConversion(rgbConverter.asConversion(downscale = faceDownscale))
+            bus.register(FrameBus.Consumer { frame ->
+                val bitmap = frame.get(bitmapKey)
+                frame.retain()
+                try {
+                    liveness.processFrame(bitmap, frame.timestampNanos, frame.rotationDegrees) { frame.release() }
+                } catch (e: Exception) {
+                    frame.release()
+                    throw e
+                }
+            }, faceFps)
+        }
+        return bus
+    }
+    
+    private fun qualityAnalyzers(analyzer: ImageAnalysis.Analyzer?): List<ImageQualityAnalyzer> = when (analyzer) {
+        is ImageQualityAnalyzer -> listOf(analyzer)
+        is FrameBus -> analyzer.analyzers().filterIsInstance<ImageQualityAnalyzer>()
+        else -> emptyList()
+    }
+    
+    private fun buildImageAnalysis(resolution: Size, analyzer: ImageAnalysis.Analyzer?): ImageAnalysis {
+        return ImageAnalysis.Builder()
+            .setTargetResolution(resolution)
+            .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)
+            .build()
+            .also { analysis ->
+                analyzer?.let { analysis.setAnalyzer(cameraExecutor, it) }
+            }
+    }
+    
+    private fun createGovernorListener(governor: AnalysisGovernor?) = object : AnalysisGovernor.Listener {
+        override fun onAnalysisStats(stats: AnalysisGovernor.Stats) {
+            analysisStatsCallback?.onAnalysisStats(stats)
+        }
+        
+        override fun onResolutionChanged(resolution: Size) {
+            ContextCompat.getMainExecutor(context).execute {
+                // ignore requests of a governor replaced by a later startCamera
+                if (governor != null && governor === analysisGovernor) {
+                    rebindAnalysis(governor, resolution)
+                }
+            }
+        }
+    }
+    
+    /**
+     * Replace only the analysis use case, preview and capture stay bound
+     */
+    private fun rebindAnalysis(governor: AnalysisGovernor, resolution: Size) {
+        val provider = cameraProvider ?: return
+        val selector = cameraSelector ?: return
+        try {
+            imageAnalyzer?.let {
+                it.clearAnalyzer()
+                provider.unbind(it)
+            }
+            val analysis = buildImageAnalysis(resolution, governor)
+            imageAnalyzer = analysis
+            camera = provider.bindToLifecycle(lifecycleOwner, selector, analysis)
+        } catch (e: Exception) {
+            cameraStateCallback?.onCameraError(e.message ?: "Unknown error")
+        }
+    }
+    
     /**
      * Capture image and return as ByteArray
      */
     fun captureImage() {
+        takePicture({ image ->
+            val buffer = image.planes[0].buffer
+            val bytes = ByteArray(buffer.remaining())
+            buffer.get(bytes)
+            imageCaptureCallback?.onImageCaptured(bytes)
+        }, { error ->
+            imageCaptureCallback?.onCaptureError(error)
+        })
+    }
+    
+    /**
+     * Capture image and lend its encoded buffer to the callback without copying
+     */
+    fun captureImage(callback: BufferCaptureCallback) {
+        takePicture({ image ->
+            // a read-only view, the consumer can't change what other readers of the image see
+            val buffer = image.planes[0].buffer.asReadOnlyBuffer()
+            callback.onImageCaptured(buffer, image.imageInfo.rotationDegrees)
+        }, callback::onCaptureError)
+    }
+    
+    /**
+     * Capture image into an array from [captureBufferPool]
+     */
+    fun captureImagePooled(callback: PooledCaptureCallback) {
+        takePicture({ image ->
+            val buffer = image.planes[0].buffer
+            val length = buffer.remaining()
+            val array = captureBufferPool.acquire(length)
+            buffer.get(array, 0, length)
+            callback.onImageCaptured(captureBufferPool.wrap(array, length))
+        }, callback::onCaptureError)
+    }
+    
+    /**
+     * Capture image and write the JPEG bytes straight to the channel at its current position
+     */
+    fun captureToChannel(channel: FileChannel, callback: ChannelCaptureCallback) {
+        takePicture({ image ->
+            val buffer = image.planes[0].buffer
+            var written = 0L
+            while (buffer.hasRemaining()) {
+                written += channel.write(buffer)
+            }
+            callback.onImageWritten(written)
+        }, callback::onCaptureError)
+    }
+    
+    /**
+     * Capture the sharpest qualifying analysis frame of the last second, no shutter round trip;
+     * falls back to a regular capture when there is none
+     */
+    fun captureBestFrame(callback: FrameCaptureCallback) {
+        cameraExecutor.execute {
+            val capture = try {
+                frameSelector.captureJpeg()
+            } catch (e: Exception) {
+                null
+            }
+            if (capture != null) {
+                callback.onFrameCaptured(capture)
+                return@execute
+            }
+            takePicture({ image ->
+                val buffer = image.planes[0].buffer
+                val bytes = ByteArray(buffer.remaining())
+                buffer.get(bytes)
+                callback.onFrameCaptured(BestFrameSelector.Capture(bytes, image.width, image.height,
+                    image.imageInfo.rotationDegrees, 0f, image.imageInfo.timestamp))
+            }, callback::onCaptureError)
+        }
+    }
+    
+    private fun takePicture(onImage: (ImageProxy) -> Unit, onFailure: (String) -> Unit) {
         imageCapture?.takePicture(
             cameraExecutor,
             object : ImageCapture.OnImageCapturedCallback() {
                 override fun onCaptureSuccess(image: ImageProxy) {
                     try {
-                        val buffer = image.planes[0].buffer
-                        val bytes = ByteArray(buffer.remaining())
-                        buffer.get(bytes)
-                        imageCaptureCallback?.onImageCaptured(bytes)
+                        onImage(image)
                     } catch (e: Exception) {
-                        imageCaptureCallback?.onCaptureError(e.message ?: "Capture error")
+                        onFailure(e.message ?: "Capture error")
                     } finally {
                         image.close()
                     }
                 }
                 
                 override fun onError(exception: ImageCaptureException) {
-                    imageCaptureCallback?.onCaptureError(exception.message ?: "Capture error")
+                    onFailure(exception.message ?: "Capture error")
                 }
             }
         )
     }
     
     /**
-     * Switch between front and back camera
+     * Switch between front and back camera, keeping the current analyzer and its settings
      */
     fun switchCamera(previewView: PreviewView, newLensFacing: Int) {
-        startCamera(previewView, newLensFacing)
+        startCamera(previewView, newLensFacing, currentAnalyzer, currentBudgetMs, currentSelectBestFrames)
     }
     
     /**
@@ -185,7 +432,25 @@ class CameraXManager(
      * Clean up resources
      */
     fun shutdown() {
+        analysisGovernor = null
         cameraProvider?.unbindAll()
+        frameSelector.clear()
+        currentAnalyzer?.let { releaseAnalyzer(it) }
+        currentAnalyzer = null
+        cameraExecutor.execute { rgbConverter.clear() }
         cameraExecutor.shutdown()
     }
+    
+    /**
+     * Release an analyzer that no longer gets frames, after any frame it is still analyzing;
+     * a bus also drops its consumers
+     */
+    private fun releaseAnalyzer(analyzer: ImageAnalysis.Analyzer) {
+        val released = qualityAnalyzers(analyzer)
+        if (released.isEmpty() && analyzer !is FrameBus) return
+        cameraExecutor.execute {
+            released.forEach { it.release() }
+            (analyzer as? FrameBus)?.clear()
+        }
+    }
 }
@@ -0,0 +1,209 @@
+package virtual.camera.app.camera
+
+import androidx.annotation.OptIn
+import androidx.camera.core.ExperimentalGetImage
+import androidx.camera.core.ImageAnalysis
+import androidx.camera.core.ImageProxy
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Frame Bus - shares each analysis frame between several consumers
+ * Every frame is reference counted and closed once the last consumer releases it. Pixel
+ * format conversions are registered once and computed at most once per frame, whichever
+ * consumer asks first. Each consumer can be limited to a maximum rate.
+ * Note that CameraX delivers the next frame only after the current one is closed, so a
+ * consumer holding a frame holds back the whole stream.
+ */
+class FrameBus : ImageAnalysis.Analyzer {
+
+    /**
+     * Frame consumer, called on the analysis thread
+     * The frame is released when [onFrame] returns unless the consumer [Frame.retain]s it.
+     */
+    fun interface Consumer {
+        fun onFrame(frame: Frame)
+    }
+
+    /**
+     * A conversion of the frame image to another representation, e.g. an RGB bitmap
+     */
+    interface Conversion<T : Any> {
+        fun convert(image: ImageProxy): T
+
+        /**
+         * Called when the frame a converted value belongs to is closed
+         */
+        fun recycle(value: T) {}
+    }
+
+    /**
+     * Registration handle of a conversion type, see [Frame.get]
+     */
+    class ConversionKey<T : Any> internal constructor(
+        internal val index: Int,
+        internal val conversion: Conversion<T>
+    )
+
+    class Frame internal constructor(
+        val image: ImageProxy,
+        private val conversions: List<ConversionKey<*>>
+    ) {
+        private val refCount = AtomicInteger(1)
+        private val converted = arrayOfNulls<Any>(conversions.size)
+
+        val timestampNanos: Long
+            get() = image.imageInfo.timestamp
+
+        val rotationDegrees: Int
+            get() = image.imageInfo.rotationDegrees
+
+        /**
+         * The converted image, computed on first use and shared by every consumer of this frame
+         */
+        fun <T : Any> get(key: ConversionKey<T>): T {
+            synchronized(converted) {
+                check(refCount.get() > 0) { "frame already closed" }
+                @Suppress("UNCHECKED_CAST")
+                converted[key.index]?.let { return it as T }
+                return key.conversion.convert(image).also { converted[key.index] = it }
+            }
+        }
+
+        /**
+         * Keep the frame open beyond [Consumer.onFrame], balance with [release]
+         */
+        fun retain(): Frame {
+            while (true) {
+                val count = refCount.get()
+                check(count > 0) { "frame already closed" }
+                if (refCount.compareAndSet(count, count + 1)) return this
+            }
+        }
+
+        fun release() {
+            val count = refCount.decrementAndGet()
+            check(count >= 0) { "frame released too often" }
+            if (count > 0) return
+            synchronized(converted) {
+                for (i in converted.indices) {
+                    val value = converted[i] ?: continue
+                    converted[i] = null
+                    recycle(conversions[i], value)
+                }
+            }
+            image.close()
+        }
+
+        /**
+         * An [ImageProxy] view of the frame, closing it releases one reference;
+         * lets existing analyzers that close their image run on the bus
+         */
+        fun asImageProxy(): ImageProxy = SharedImageProxy(retain())
+
+        private fun <T : Any> recycle(key: ConversionKey<T>, value: Any) {
+            @Suppress("UNCHECKED_CAST")
+            key.conversion.recycle(value as T)
+        }
+    }
+
+    @OptIn(ExperimentalGetImage::class)
+    private class SharedImageProxy(private val frame: Frame) : ImageProxy by frame.image {
+        private val closed = AtomicBoolean()
+
+        override fun close() {
+            if (closed.compareAndSet(false, true)) {
+                frame.release()
+            }
+        }
+    }
+
+    private class Registration(val consumer: Consumer, val minIntervalNanos: Long) {
+        var lastTimestamp = Long.MIN_VALUE
+        var delivered = 0L
+        var skipped = 0L
+    }
+
+    private val registrations = CopyOnWriteArrayList<Registration>()
+    @Volatile
+    private var conversions: List<ConversionKey<*>> = emptyList()
+
+    /**
+     * Register a conversion type; register each type once and share the key between consumers
+     */
+    @Synchronized
+    fun <T : Any> registerConversion(conversion: Conversion<T>): ConversionKey<T> {
+        val key = ConversionKey(conversions.size, conversion)
+        conversions = conversions + key
+        return key
+    }
+
+    /**
+     * @param maxFps frames per second delivered to the consumer at most, 0 = every frame
+     */
+    fun register(consumer: Consumer, maxFps: Float = 0f) {
+        val interval = if (maxFps > 0f) (TimeUnit.SECONDS.toNanos(1) / maxFps).toLong() else 0L
+        registrations.add(Registration(consumer, interval))
+    }
+
+    /**
+     * Register an analyzer that closes its image, e.g. [ImageQualityAnalyzer]
+     */
+    fun register(analyzer: ImageAnalysis.Analyzer, maxFps: Float = 0f) {
+        register(AnalyzerConsumer(analyzer), maxFps)
+    }
+
+    fun unregister(consumer: Consumer) {
+        registrations.removeAll { it.consumer === consumer }
+    }
+
+    fun unregister(analyzer: ImageAnalysis.Analyzer) {
+        registrations.removeAll { (it.consumer as? AnalyzerConsumer)?.analyzer === analyzer }
+    }
+
+    /**
+     * Unregister every consumer, frames still open keep their conversions until released
+     */
+    fun clear() {
+        registrations.clear()
+    }
+
+    /**
+     * Analyzers registered with [register], in registration order
+     */
+    fun analyzers(): List<ImageAnalysis.Analyzer> =
+        registrations.mapNotNull { (it.consumer as? AnalyzerConsumer)?.analyzer }
+
+    override fun analyze(image: ImageProxy) {
+        val frame = Frame(image, conversions)
+        try {
+            val timestamp = image.imageInfo.timestamp
+            for (registration in registrations) {
+                if (registration.minIntervalNanos > 0 && registration.lastTimestamp != Long.MIN_VALUE &&
+                    timestamp - registration.lastTimestamp < registration.minIntervalNanos) {
+                    registration.skipped++
+                    continue
+                }
+                registration.lastTimestamp = timestamp
+                registration.delivered++
+                registration.consumer.onFrame(frame)
+            }
+        } finally {
+            // the bus' own reference
+            frame.release()
+        }
+    }
+
+    /**
+     * Frames delivered to and skipped for each consumer by rate limit, in registration order
+     */
+    fun getConsumerStats(): List<Pair<Long, Long>> = registrations.map { it.delivered to it.skipped }
+
+    private class AnalyzerConsumer(val analyzer: ImageAnalysis.Analyzer) : Consumer {
+        override fun onFrame(frame: Frame) {
+            analyzer.analyze(frame.asImageProxy())
+        }
+    }
+}
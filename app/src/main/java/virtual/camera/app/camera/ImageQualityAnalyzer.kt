@@ -1,5 +1,6 @@
 package virtual.camera.app.camera
 
+import android.graphics.Rect
 import androidx.camera.core.ImageAnalysis
 import androidx.camera.core.ImageProxy
 import kotlin.math.sqrt
@@ -7,8 +8,11 @@ import kotlin.math.sqrt
 /**
  * Image Quality Analyzer - Real-time image quality validation
  * Implements blur detection and brightness validation for KYC standards
+ *
+ * @param parallelism threads used for frames of at least [TiledFrameAnalysis.MIN_PIXELS];
+ * 1 analyzes every frame serially on the calling thread
  */
-class ImageQualityAnalyzer : ImageAnalysis.Analyzer {
+class ImageQualityAnalyzer(private val parallelism: Int = 1) : ImageAnalysis.Analyzer {
     
     /**
      * Callback interface for quality analysis results
@@ -40,23 +44,77 @@ class ImageQualityAnalyzer : ImageAnalysis.Analyzer {
     
     var callback: QualityCallback? = null
     
+    // Scratch state reused across frames
+    private val lumaStats = LumaStats()
+    private val sharpness = LaplacianSharpness()
+    private val tiledDelegate = lazy {
+        if (parallelism > 1) TiledFrameAnalysis(parallelism) else null
+    }
+    private val tiled: TiledFrameAnalysis? by tiledDelegate
+    
+    /**
+     * Region the sharpness is measured in, in analysis image coordinates
+     * (e.g. the face bounding box); null = whole frame
+     */
+    @Volatile
+    var regionOfInterest: Rect? = null
+    
+    /**
+     * Receives every analyzed frame with its scores before the frame is closed
+     */
+    @Volatile
+    var frameSelector: BestFrameSelector? = null
+    
+    /**
+     * Sharpness subsampling: 1, 2 or 4
+     */
+    var sharpnessSubsample: Int
+        get() = sharpness.subsample
+        set(value) {
+            sharpness.subsample = value
+        }
+    
     // Frame counter for stability
     private var frameCount = 0
     private var consecutiveGoodFrames = 0
     
     override fun analyze(image: ImageProxy) {
         try {
-            val buffer = image.planes[0].buffer
-            val data = ByteArray(buffer.remaining())
-            buffer.get(data)
-            
-            val width = image.width
-            val height = image.height
-            
-            // Calculate quality metrics
-            val blurScore = calculateBlurScore(data, width, height)
-            val brightnessScore = calculateBrightness(data)
-            val contrastScore = calculateContrast(data)
+            // Calculate quality metrics, brightness and contrast in one pass over the Y plane
+            val blurScore: Float
+            val brightnessScore: Float
+            val contrastScore: Float
+            val tiledAnalysis = if (image.width * image.height >= TiledFrameAnalysis.MIN_PIXELS &&
+                sharpness.subsample == 1) tiled else null
+            if (tiledAnalysis != null) {
+                val plane = image.planes[0]
+                val width = image.width
+                val height = image.height
+                val roi = regionOfInterest
+                if (roi == null) {
+                    val result = tiledAnalysis.compute(plane.buffer, width, height, plane.rowStride, plane.pixelStride)
+                    blurScore = result.laplacian.variance.toFloat()
+                    brightnessScore = result.luma.mean.toFloat()
+                    contrastScore = sqrt(result.luma.variance).toFloat()
+                } else {
+                    // sharpness inside the region only, exposure still over the whole frame
+                    val left = roi.left.coerceIn(0, width)
+                    val top = roi.top.coerceIn(0, height)
+                    val result = tiledAnalysis.compute(
+                        plane.buffer, width, height, plane.rowStride, plane.pixelStride,
+                        left, top, roi.right.coerceIn(left, width), roi.bottom.coerceIn(top, height)
+                    )
+                    val stats = lumaStats.compute(image)
+                    blurScore = result.laplacian.variance.toFloat()
+                    brightnessScore = stats.mean.toFloat()
+                    contrastScore = stats.stdDev.toFloat()
+                }
+            } else {
+                val stats = lumaStats.compute(image)
+                blurScore = calculateBlurScore(image)
+                brightnessScore = stats.mean.toFloat()
+                contrastScore = stats.stdDev.toFloat()
+            }
             
             // Determine if quality is acceptable
             val isBlurOk = blurScore >= CameraXManager.BLUR_THRESHOLD
@@ -66,6 +124,8 @@ class ImageQualityAnalyzer : ImageAnalysis.Analyzer {
             
             val isQualityOk = isBlurOk && isBrightnessOk && isContrastOk
             
+            frameSelector?.offer(image, blurScore, brightnessScore, contrastScore)
+            
             // Track consecutive good frames
             if (isQualityOk) {
                 consecutiveGoodFrames++
@@ -113,58 +173,15 @@ class ImageQualityAnalyzer : ImageAnalysis.Analyzer {
      * Calculate blur score using Laplacian variance method
      * Higher score = sharper image
      */
-    private fun calculateBlurScore(data: ByteArray, width: Int, height: Int): Float {
-        if (data.isEmpty()) return 0f
-        
-        var variance = 0.0
-        var mean = 0.0
-        
-        // Calculate mean
-        for (byte in data) {
-            mean += (byte.toInt() and 0xFF)
-        }
-        mean /= data.size
-        
-        // Calculate variance
-        for (byte in data) {
-            val diff = (byte.toInt() and 0xFF) - mean
-            variance += diff * diff
-        }
-        variance /= data.size
-        
-        return sqrt(variance).toFloat()
-    }
-    
-    /**
-     * Calculate average brightness
-     * Range: 0-255
-     */
-    private fun calculateBrightness(data: ByteArray): Float {
-        if (data.isEmpty()) return 0f
-        
-        var sum = 0L
-        for (byte in data) {
-            sum += (byte.toInt() and 0xFF)
-        }
-        return (sum.toFloat() / data.size)
+    private fun calculateBlurScore(image: ImageProxy): Float {
+        return sharpness.compute(image, regionOfInterest).toFloat()
     }
     
     /**
-     * Calculate contrast using standard deviation
+     * Stop the tiled analysis threads, if any were started
      */
-    private fun calculateContrast(data: ByteArray): Float {
-        if (data.isEmpty()) return 0f
-        
-        val brightness = calculateBrightness(data)
-        var variance = 0.0
-        
-        for (byte in data) {
-            val diff = (byte.toInt() and 0xFF) - brightness
-            variance += diff * diff
-        }
-        variance /= data.size
-        
-        return sqrt(variance).toFloat()
+    fun release() {
+        if (tiledDelegate.isInitialized()) tiledDelegate.value?.close()
     }
     
     /**
@@ -0,0 +1,99 @@
+package virtual.camera.app.camera
+
+import android.graphics.Rect
+import androidx.camera.core.ImageProxy
+import java.nio.ByteBuffer
+
+/**
+ * Laplacian Sharpness - variance of the 3x3 Laplacian over the Y plane
+ * Kernel [0 1 0; 1 -4 1; 0 1 0]; higher variance = sharper image.
+ * The sampled luma is unpacked into an int buffer that is kept between frames.
+ * Not thread safe, use one instance per analyzer thread.
+ */
+class LaplacianSharpness(subsample: Int = 1) {
+
+    /**
+     * Sample every 1st, 2nd or 4th pixel in both directions
+     */
+    var subsample: Int = subsample
+        set(value) {
+            require(value == 1 || value == 2 || value == 4) { "subsample must be 1, 2 or 4: $value" }
+            field = value
+        }
+
+    private var pixels = IntArray(0)
+    private var row = ByteArray(0)
+
+    init {
+        this.subsample = subsample
+    }
+
+    /**
+     * Sharpness of the Y plane, optionally limited to a region in image coordinates
+     */
+    fun compute(image: ImageProxy, roi: Rect? = null): Double {
+        val plane = image.planes[0]
+        return compute(plane.buffer, image.width, image.height, plane.rowStride, plane.pixelStride, roi)
+    }
+
+    fun compute(
+        buffer: ByteBuffer,
+        width: Int,
+        height: Int,
+        rowStride: Int,
+        pixelStride: Int,
+        roi: Rect? = null
+    ): Double {
+        val left = roi?.left?.coerceIn(0, width) ?: 0
+        val top = roi?.top?.coerceIn(0, height) ?: 0
+        val right = roi?.right?.coerceIn(left, width) ?: width
+        val bottom = roi?.bottom?.coerceIn(top, height) ?: height
+        val step = subsample
+        val w = (right - left + step - 1) / step
+        val h = (bottom - top + step - 1) / step
+        // the kernel needs a border pixel on every side
+        if (w < 3 || h < 3) return 0.0
+
+        if (pixels.size < w * h) {
+            pixels = IntArray(w * h)
+        }
+        val px = pixels
+        val srcStep = step * pixelStride
+        val rowBytes = (w - 1) * srcStep + 1
+        if (row.size < rowBytes) {
+            row = ByteArray(rowBytes)
+        }
+        val data = row
+        val base = buffer.position()
+        try {
+            for (j in 0 until h) {
+                buffer.position(base + (top + j * step) * rowStride + left * pixelStride)
+                buffer.get(data, 0, rowBytes)
+                var out = j * w
+                var src = 0
+                for (i in 0 until w) {
+                    px[out++] = data[src].toInt() and 0xFF
+                    src += srcStep
+                }
+            }
+        } finally {
+            buffer.position(base)
+        }
+
+        var sum = 0L
+        var sumSq = 0L
+        for (y in 1 until h - 1) {
+            var c = y * w + 1
+            val end = y * w + w - 1
+            while (c < end) {
+                val lap = px[c - w] + px[c + w] + px[c - 1] + px[c + 1] - 4 * px[c]
+                sum += lap
+                sumSq += lap * lap
+                c++
+            }
+        }
+        val n = (w - 2).toLong() * (h - 2)
+        val mean = sum.toDouble() / n
+        return (sumSq.toDouble() / n - mean * mean).coerceAtLeast(0.0)
+    }
+}
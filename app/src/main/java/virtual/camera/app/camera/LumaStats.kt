@@ -0,0 +1,116 @@
+package virtual.camera.app.camera
+
+import androidx.camera.core.ImageProxy
+import java.nio.ByteBuffer
+import kotlin.math.sqrt
+
+/**
+ * Luma Stats - single pass mean/variance/min/max over a Y plane
+ * Reads the plane buffer row by row honoring rowStride/pixelStride; the row and histogram
+ * buffers are kept between frames, so a frame costs no allocation once they have grown.
+ * Not thread safe, use one instance per analyzer thread.
+ */
+class LumaStats {
+
+    var count = 0L
+        private set
+    var mean = 0.0
+        private set
+    var variance = 0.0
+        private set
+    var min = 0
+        private set
+    var max = 0
+        private set
+
+    val stdDev: Double
+        get() = sqrt(variance)
+
+    private val histogram = IntArray(256)
+    private var row = ByteArray(0)
+
+    /**
+     * Compute the statistics of the Y plane of the image
+     */
+    fun compute(image: ImageProxy): LumaStats {
+        val plane = image.planes[0]
+        return compute(plane.buffer, image.width, image.height, plane.rowStride, plane.pixelStride)
+    }
+
+    /**
+     * Compute the statistics of the [left, right) x [top, bottom) region of a luma plane
+     */
+    fun compute(
+        buffer: ByteBuffer,
+        width: Int,
+        height: Int,
+        rowStride: Int,
+        pixelStride: Int,
+        left: Int = 0,
+        top: Int = 0,
+        right: Int = width,
+        bottom: Int = height
+    ): LumaStats {
+        val hist = histogram
+        hist.fill(0)
+        val columns = right - left
+        if (columns > 0 && bottom > top) {
+            // bytes one row of the region spans, the last pixel needs no trailing stride
+            val rowBytes = (columns - 1) * pixelStride + 1
+            if (row.size < rowBytes) {
+                row = ByteArray(rowBytes)
+            }
+            val data = row
+            val base = buffer.position()
+            try {
+                for (y in top until bottom) {
+                    buffer.position(base + y * rowStride + left * pixelStride)
+                    buffer.get(data, 0, rowBytes)
+                    var i = 0
+                    while (i < rowBytes) {
+                        hist[data[i].toInt() and 0xFF]++
+                        i += pixelStride
+                    }
+                }
+            } finally {
+                buffer.position(base)
+            }
+        }
+        return fromHistogram(hist)
+    }
+
+    /**
+     * The 256 bin histogram of the last computed region
+     */
+    fun histogram(): IntArray = histogram
+
+    private fun fromHistogram(hist: IntArray): LumaStats {
+        var n = 0L
+        var sum = 0L
+        var sumSq = 0L
+        var lo = -1
+        var hi = 0
+        for (v in 0 until 256) {
+            val c = hist[v].toLong()
+            if (c == 0L) continue
+            if (lo < 0) lo = v
+            hi = v
+            n += c
+            sum += c * v
+            sumSq += c * v * v
+        }
+        count = n
+        if (n == 0L) {
+            mean = 0.0
+            variance = 0.0
+            min = 0
+            max = 0
+        } else {
+            mean = sum.toDouble() / n
+            variance = (sumSq.toDouble() / n - mean * mean).coerceAtLeast(0.0)
+            min = lo
+            max = hi
+        }
+        return this
+    }
+}
@@ -0,0 +1,208 @@
+package virtual.camera.app.camera
+
+import java.nio.ByteBuffer
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveTask
+
+/**
+ * Tiled Frame Analysis - luma and Laplacian statistics of large frames on a fork-join pool
+ * The region is split into horizontal stripes; each stripe computes exact integer moments and
+ * the stripes are reduced with the pairwise (Chan et al.) mean/variance merge, so the result
+ * matches the serial kernels up to floating point rounding.
+ */
+class TiledFrameAnalysis(val parallelism: Int = Runtime.getRuntime().availableProcessors()) {
+
+    /**
+     * Count, mean and sum of squared deviations of a sample, mergeable across tiles
+     */
+    class Moments {
+        var count = 0L
+        var mean = 0.0
+        var m2 = 0.0
+        var min = Int.MAX_VALUE
+        var max = Int.MIN_VALUE
+
+        val variance: Double
+            get() = if (count > 0) m2 / count else 0.0
+
+        internal fun set(count: Long, sum: Long, sumSq: Long, min: Int, max: Int) {
+            this.count = count
+            if (count == 0L) return
+            mean = sum.toDouble() / count
+            m2 = (sumSq - sum.toDouble() * sum / count).coerceAtLeast(0.0)
+            this.min = min
+            this.max = max
+        }
+
+        internal fun merge(other: Moments): Moments {
+            if (other.count == 0L) return this
+            if (count == 0L) {
+                count = other.count
+                mean = other.mean
+                m2 = other.m2
+                min = other.min
+                max = other.max
+                return this
+            }
+            val n = count + other.count
+            val delta = other.mean - mean
+            mean += delta * other.count / n
+            m2 += other.m2 + delta * delta * count * other.count / n
+            count = n
+            min = minOf(min, other.min)
+            max = maxOf(max, other.max)
+            return this
+        }
+    }
+
+    class Result {
+        /** luma of the region */
+        val luma = Moments()
+
+        /** 3x3 Laplacian response over the interior of the region */
+        val laplacian = Moments()
+
+        internal fun merge(other: Result): Result {
+            luma.merge(other.luma)
+            laplacian.merge(other.laplacian)
+            return this
+        }
+    }
+
+    private val poolDelegate = lazy { ForkJoinPool(parallelism) }
+    private val pool: ForkJoinPool by poolDelegate
+
+    // per worker scratch rows, three rows for the Laplacian window
+    private val scratch = object : ThreadLocal<Array<ByteArray>>() {
+        override fun initialValue() = arrayOf(ByteArray(0), ByteArray(0), ByteArray(0))
+    }
+
+    fun compute(
+        buffer: ByteBuffer,
+        width: Int,
+        height: Int,
+        rowStride: Int,
+        pixelStride: Int,
+        left: Int = 0,
+        top: Int = 0,
+        right: Int = width,
+        bottom: Int = height,
+        stripes: Int = parallelism * 2
+    ): Result {
+        val frame = Frame(buffer, rowStride, pixelStride, left, top, right, bottom)
+        if (right <= left || bottom <= top) return Result()
+        val minRows = ((bottom - top) / stripes.coerceAtLeast(1)).coerceAtLeast(MIN_STRIPE_ROWS)
+        return pool.invoke(StripeTask(frame, top, bottom, minRows))
+    }
+
+    /**
+     * Shut down the worker threads
+     */
+    fun close() {
+        if (poolDelegate.isInitialized()) pool.shutdown()
+    }
+
+    private class Frame(
+        val buffer: ByteBuffer,
+        val rowStride: Int,
+        val pixelStride: Int,
+        val left: Int,
+        val top: Int,
+        val right: Int,
+        val bottom: Int
+    )
+
+    private inner class StripeTask(
+        private val frame: Frame,
+        private val y0: Int,
+        private val y1: Int,
+        private val minRows: Int
+    ) : RecursiveTask<Result>() {
+
+        override fun compute(): Result {
+            if (y1 - y0 <= minRows) {
+                return computeStripe(frame, y0, y1)
+            }
+            val mid = (y0 + y1) ushr 1
+            val upper = StripeTask(frame, y0, mid, minRows)
+            upper.fork()
+            val lower = StripeTask(frame, mid, y1, minRows).compute()
+            return upper.join().merge(lower)
+        }
+    }
+
+    private fun computeStripe(frame: Frame, y0: Int, y1: Int): Result {
+        // position is per buffer, each stripe reads through its own view
+        val buffer = frame.buffer.duplicate()
+        val base = frame.buffer.position()
+        val pixelStride = frame.pixelStride
+        val columns = frame.right - frame.left
+        val rowBytes = (columns - 1) * pixelStride + 1
+        val rows = scratch.get()!!
+        for (i in rows.indices) {
+            if (rows[i].size < rowBytes) rows[i] = ByteArray(rowBytes)
+        }
+
+        var count = 0L
+        var sum = 0L
+        var sumSq = 0L
+        var min = Int.MAX_VALUE
+        var max = Int.MIN_VALUE
+        var lapCount = 0L
+        var lapSum = 0L
+        var lapSumSq = 0L
+
+        // Laplacian rows are the interior of the region, a stripe reads one halo row on each side
+        val readFrom = maxOf(y0 - 1, frame.top)
+        val readTo = minOf(y1 + 1, frame.bottom)
+        var prev: ByteArray? = null
+        var cur: ByteArray? = null
+        for (y in readFrom until readTo) {
+            val next = rows[(y - readFrom) % 3]
+            buffer.position(base + y * frame.rowStride + frame.left * pixelStride)
+            buffer.get(next, 0, rowBytes)
+            if (y in y0 until y1) {
+                var i = 0
+                while (i < rowBytes) {
+                    val v = next[i].toInt() and 0xFF
+                    sum += v
+                    sumSq += v * v
+                    if (v < min) min = v
+                    if (v > max) max = v
+                    i += pixelStride
+                }
+                count += columns
+            }
+            // cur is row y - 1, emit its Laplacian once its lower neighbour is loaded
+            if (prev != null && cur != null && y - 1 in y0 until y1) {
+                var x = pixelStride
+                val end = rowBytes - pixelStride
+                while (x < end) {
+                    val lap = (prev[x].toInt() and 0xFF) + (next[x].toInt() and 0xFF) +
+                            (cur[x - pixelStride].toInt() and 0xFF) + (cur[x + pixelStride].toInt() and 0xFF) -
+                            4 * (cur[x].toInt() and 0xFF)
+                    lapSum += lap
+                    lapSumSq += lap * lap
+                    lapCount++
+                    x += pixelStride
+                }
+            }
+            prev = cur
+            cur = next
+        }
+
+        val result = Result()
+        result.luma.set(count, sum, sumSq, min, max)
+        result.laplacian.set(lapCount, lapSum, lapSumSq, 0, 0)
+        return result
+    }
+
+    companion object {
+        private const val MIN_STRIPE_ROWS = 16
+
+        /**
+         * Frames smaller than this are analyzed serially, forking costs more than it saves
+         */
+        const val MIN_PIXELS = 640 * 480
+    }
+}
@@ -0,0 +1,208 @@
+package virtual.camera.app.camera
+
+import android.graphics.Bitmap
+import android.graphics.ImageFormat
+import android.graphics.Rect
+import androidx.camera.core.ImageProxy
+import java.nio.ByteBuffer
+
+/**
+ * YUV To RGB Converter - YUV_420_888 frames to ARGB bitmaps without per frame allocation
+ * Honors any row/pixel stride (planar I420 as well as interleaved NV12/NV21 layouts), and can
+ * crop to a region and downscale by an integer factor in the same pass. Output bitmaps and
+ * pixel arrays come from small pools; hand them back with [recycle] once done.
+ * The image is converted as stored, rotation is left to the consumer.
+ */
+class YuvToRgbConverter(private val maxPooled: Int = 2) {
+
+    private val bitmapPool = ArrayDeque<Bitmap>()
+    private val pixelPool = ArrayDeque<IntArray>()
+
+    // scratch rows, guarded by this
+    private var yRow = ByteArray(0)
+    private var uRow = ByteArray(0)
+    private var vRow = ByteArray(0)
+    private val region = Rect()
+
+    /**
+     * Convert the frame, optionally cropped to [roi] (image coordinates) and sampled every
+     * [downscale] pixels, into a pooled ARGB_8888 bitmap
+     */
+    @Synchronized
+    fun convert(image: ImageProxy, roi: Rect? = null, downscale: Int = 1): Bitmap {
+        val region = clampRegion(image, roi)
+        require(!region.isEmpty) { "empty region: $roi" }
+        val width = outputSize(region.width(), downscale)
+        val height = outputSize(region.height(), downscale)
+        val pixels = acquirePixels(width * height)
+        try {
+            convert(image, region, downscale, pixels)
+            val bitmap = acquireBitmap(width, height)
+            bitmap.setPixels(pixels, 0, width, 0, 0, width, height)
+            return bitmap
+        } finally {
+            recycle(pixels)
+        }
+    }
+
+    /**
+     * Convert into a pooled ARGB pixel array of at least width * height entries, row major
+     */
+    @Synchronized
+    fun convertToArgb(image: ImageProxy, roi: Rect? = null, downscale: Int = 1): IntArray {
+        val region = clampRegion(image, roi)
+        val pixels = acquirePixels(outputSize(region.width(), downscale) * outputSize(region.height(), downscale))
+        convert(image, region, downscale, pixels)
+        return pixels
+    }
+
+    /**
+     * A [FrameBus] conversion producing pooled bitmaps, returned to the pool when the frame closes
+     */
+    fun asConversion(roi: Rect? = null, downscale: Int = 1) = object : FrameBus.Conversion<Bitmap> {
+        override fun convert(image: ImageProxy): Bitmap = this@YuvToRgbConverter.convert(image, roi, downscale)
+
+        override fun recycle(value: Bitmap) = this@YuvToRgbConverter.recycle(value)
+    }
+
+    fun recycle(bitmap: Bitmap) {
+        if (bitmap.isRecycled || !bitmap.isMutable) return
+        synchronized(bitmapPool) {
+            if (bitmapPool.size >= maxPooled) bitmapPool.removeFirst()
+            bitmapPool.addLast(bitmap)
+        }
+    }
+
+    fun recycle(pixels: IntArray) {
+        synchronized(pixelPool) {
+            if (pixelPool.size >= maxPooled) pixelPool.removeFirst()
+            pixelPool.addLast(pixels)
+        }
+    }
+
+    fun clear() {
+        synchronized(bitmapPool) { bitmapPool.clear() }
+        synchronized(pixelPool) { pixelPool.clear() }
+    }
+
+    private fun convert(image: ImageProxy, region: Rect, downscale: Int, out: IntArray) {
+        require(image.format == ImageFormat.YUV_420_888) { "unsupported format: ${image.format}" }
+        val planes = image.planes
+        convert(
+            planes[0].buffer, planes[0].rowStride, planes[0].pixelStride,
+            planes[1].buffer, planes[2].buffer, planes[1].rowStride, planes[1].pixelStride,
+            region.left, region.top,
+            outputSize(region.width(), downscale), outputSize(region.height(), downscale),
+            downscale, out
+        )
+    }
+
+    /**
+     * Convert width x height output pixels, sampled every [step] source pixels from
+     * ([left], [top]), into [out]; full range BT.601 (JFIF) with 10 bit fixed point coefficients
+     */
+    @Synchronized
+    fun convert(
+        yBuffer: ByteBuffer,
+        yRowStride: Int,
+        yPixelStride: Int,
+        uBuffer: ByteBuffer,
+        vBuffer: ByteBuffer,
+        uvRowStride: Int,
+        uvPixelStride: Int,
+        left: Int,
+        top: Int,
+        width: Int,
+        height: Int,
+        step: Int,
+        out: IntArray
+    ) {
+        require(step >= 1) { "step must be positive: $step" }
+        require(out.size >= width * height) { "output too small" }
+        if (width <= 0 || height <= 0) return
+        val right = left + (width - 1) * step
+        val yBytes = (right - left) * yPixelStride + 1
+        val cLeft = left shr 1
+        val cBytes = ((right shr 1) - cLeft) * uvPixelStride + 1
+        if (yRow.size < yBytes) yRow = ByteArray(yBytes)
+        if (uRow.size < cBytes) {
+            uRow = ByteArray(cBytes)
+            vRow = ByteArray(cBytes)
+        }
+        val ys = yRow
+        val us = uRow
+        val vs = vRow
+        val yBase = yBuffer.position()
+        val uBase = uBuffer.position()
+        val vBase = vBuffer.position()
+        try {
+            var o = 0
+            for (j in 0 until height) {
+                val sy = top + j * step
+                yBuffer.position(yBase + sy * yRowStride + left * yPixelStride)
+                yBuffer.get(ys, 0, yBytes)
+                val cOffset = (sy shr 1) * uvRowStride + cLeft * uvPixelStride
+                uBuffer.position(uBase + cOffset)
+                uBuffer.get(us, 0, cBytes)
+                vBuffer.position(vBase + cOffset)
+                vBuffer.get(vs, 0, cBytes)
+                for (i in 0 until width) {
+                    val sx = left + i * step
+                    val y = ys[(sx - left) * yPixelStride].toInt() and 0xFF
+                    val c = ((sx shr 1) - cLeft) * uvPixelStride
+                    val u = (us[c].toInt() and 0xFF) - 128
+                    val v = (vs[c].toInt() and 0xFF) - 128
+                    val r = clamp(y + ((1436 * v) shr 10))
+                    val g = clamp(y - ((352 * u + 731 * v) shr 10))
+                    val b = clamp(y + ((1815 * u) shr 10))
+                    out[o++] = (0xFF shl 24) or (r shl 16) or (g shl 8) or b
+                }
+            }
+        } finally {
+            yBuffer.position(yBase)
+            uBuffer.position(uBase)
+            vBuffer.position(vBase)
+        }
+    }
+
+    private fun clampRegion(image: ImageProxy, roi: Rect?): Rect {
+        region.set(0, 0, image.width, image.height)
+        if (roi != null && !region.intersect(roi)) region.setEmpty()
+        return region
+    }
+
+    private fun acquireBitmap(width: Int, height: Int): Bitmap {
+        synchronized(bitmapPool) {
+            val iterator = bitmapPool.iterator()
+            while (iterator.hasNext()) {
+                val bitmap = iterator.next()
+                if (bitmap.width == width && bitmap.height == height) {
+                    iterator.remove()
+                    return bitmap
+                }
+            }
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+    }
+
+    private fun acquirePixels(size: Int): IntArray {
+        synchronized(pixelPool) {
+            val iterator = pixelPool.iterator()
+            while (iterator.hasNext()) {
+                val pixels = iterator.next()
+                if (pixels.size >= size) {
+                    iterator.remove()
+                    return pixels
+                }
+            }
+        }
+        return IntArray(size)
+    }
+
+    private fun outputSize(size: Int, downscale: Int): Int {
+        require(downscale >= 1) { "downscale must be positive: $downscale" }
+        return (size + downscale - 1) / downscale
+    }
+
+    private fun clamp(value: Int): Int = if (value < 0) 0 else if (value > 255) 255 else value
+}
@@ -2,6 +2,7 @@ package virtual.camera.app.data
 
 import android.content.Intent
 import android.content.pm.ApplicationInfo
+import android.content.pm.PackageManager
 import android.util.Log
 import androidx.core.content.edit
 import androidx.lifecycle.MutableLiveData
@@ -13,7 +14,12 @@ import virtual.camera.app.bean.AppInfo
 import virtual.camera.app.bean.InstalledAppBean
 import virtual.camera.app.util.AbiUtils
 import virtual.camera.app.util.getString
+import kotlinx.coroutines.async
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.channelFlow
 import java.io.File
+import java.util.concurrent.Executors
 
 
 /**
@@ -27,59 +33,110 @@ class AppsRepository {
     val TAG: String = "AppsRepository"
     private var mInstalledList = mutableListOf<AppInfo>()
 
+    private val scanDispatcher = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors().coerceIn(1, SCAN_MAX_THREADS)
+    ).asCoroutineDispatcher()
 
-    fun previewInstallList() {
-        synchronized(mInstalledList) {
-            val installedApplications: List<ApplicationInfo> =
-                App.getContext().getPackageManager().getInstalledApplications(0)
-            val installedList = mutableListOf<AppInfo>()
-
-            for (installedApplication in installedApplications) {
-                val file = File(installedApplication.sourceDir)
-
-                if ((installedApplication.flags and ApplicationInfo.FLAG_SYSTEM) != 0) continue
+    companion object {
+        private const val SCAN_MAX_THREADS = 4
+        private const val SCAN_BATCH_SIZE = 16
+    }
 
-                if (!AbiUtils.isSupport(file)) continue
 
-                val isXpModule = false
+    /**
+     * 预先扫描host应用，供添加列表直接使用
+     */
+    suspend fun previewInstallList() {
+        var scanned: List<AppInfo> = emptyList()
+        scanHostApps().collect { scanned = it }
+        synchronized(mInstalledList) {
+            this.mInstalledList.clear()
+            this.mInstalledList.addAll(scanned)
+        }
+    }
 
-                val info = AppInfo(
-                    installedApplication.loadLabel(App.getContext().getPackageManager()).toString(),
-                    installedApplication.loadIcon(App.getContext().getPackageManager()),
-                    installedApplication.packageName,
-                    installedApplication.sourceDir,
-                    isXpModule
-                )
-                installedList.add(info)
+    /**
+     * 扫描可安装的host应用，每解析完一批就发出当前已解析的完整列表。
+     * abi检查和label加载在有界线程池里并行，图标在列表绑定时才加载
+     */
+    private fun scanHostApps(): Flow<List<AppInfo>> = channelFlow {
+        val pm = App.getContext().packageManager
+        val candidates = pm.getInstalledApplications(0).filter {
+            (it.flags and ApplicationInfo.FLAG_SYSTEM) == 0
+        }
+        val batches = candidates.chunked(SCAN_BATCH_SIZE).map { batch ->
+            async(scanDispatcher) {
+                batch.mapNotNull { toAppInfo(pm, it) }
             }
-            this.mInstalledList.clear()
-            this.mInstalledList.addAll(installedList)
         }
+        val resolved = ArrayList<AppInfo>(candidates.size)
+        for (batch in batches) {
+            resolved.addAll(batch.await())
+            send(ArrayList(resolved))
+        }
+        if (batches.isEmpty()) {
+            send(resolved)
+        }
+        AbiUtils.flush()
+    }
+
+    private fun toAppInfo(pm: PackageManager, applicationInfo: ApplicationInfo): AppInfo? {
+        if (!AbiUtils.isSupport(File(applicationInfo.sourceDir))) return null
 
+        val isXpModule = false
 
+        return AppInfo(
+            applicationInfo.loadLabel(pm).toString(),
+            null,
+            applicationInfo.packageName,
+            applicationInfo.sourceDir,
+            isXpModule
+        )
     }
 
-    fun getInstalledAppList(
+    private fun toInstalledAppList(appList: List<AppInfo>, userID: Int): List<InstalledAppBean> {
+        val installedInfos = HackApi.getPackageInfos(appList.map { it.packageName }, userID, 0)
+        return appList.map {
+            var isInstalled = installedInfos.containsKey(it.packageName)
+            InstalledAppBean(
+                it.name,
+                it.icon,
+                it.packageName,
+                it.sourceDir,
+                isInstalled
+            )
+        }
+    }
+
+    suspend fun getInstalledAppList(
         userID: Int,
         loadingLiveData: MutableLiveData<Boolean>,
         appsLiveData: MutableLiveData<List<InstalledAppBean>>
     ) {
         loadingLiveData.postValue(true)
-        synchronized(mInstalledList) {
-            Log.d(TAG, mInstalledList.joinToString(","))
-            val newInstalledList = mInstalledList.map {
-                var isInstalled = HackApi.getPackageInfo(it.packageName,userID,0) != null
-                InstalledAppBean(
-                    it.name,
-                    it.icon,
-                    it.packageName,
-                    it.sourceDir,
-                    isInstalled
-                )
+        val preview = synchronized(mInstalledList) {
+            mInstalledList.toList()
+        }
+        Log.d(TAG, preview.joinToString(","))
+        if (preview.isNotEmpty()) {
+            // 先显示预扫描的结果，后台重新扫描后再整体刷新
+            appsLiveData.postValue(toInstalledAppList(preview, userID))
+        }
+        var scanned: List<AppInfo> = preview
+        scanHostApps().collect {
+            scanned = it
+            if (preview.isEmpty()) {
+                appsLiveData.postValue(toInstalledAppList(it, userID))
             }
-            appsLiveData.postValue(newInstalledList)
-            loadingLiveData.postValue(false)
         }
+        synchronized(mInstalledList) {
+            mInstalledList.clear()
+            mInstalledList.addAll(scanned)
+        }
+        if (preview.isNotEmpty() && preview != scanned) {
+            appsLiveData.postValue(toInstalledAppList(scanned, userID))
+        }
+        loadingLiveData.postValue(false)
     }
 
     fun getInstalledModuleList(
@@ -112,15 +169,14 @@ class AppsRepository {
             AppManager.mRemarkSharedPreferences.getString("AppList$userId", "")
         val sortList = sortListData?.split(",")
 
-        var installedPkgs = HackApi.getInstalledPackages(0, userId)
-        if(installedPkgs != null && installedPkgs.size > 0){
+        var installedPkgs = HackApi.getInstalledPackages(0, userId) ?: mutableListOf()
+        if(installedPkgs.size > 0){
             installedPkgs.remove("com.waxmoon.ma.gp");
         }
 
         var applicationList = mutableListOf<ApplicationInfo>()
-        installedPkgs.forEach {
-            var packageInfo = HackApi.getPackageInfo(it, userId, 0)
-            applicationList.add(packageInfo.applicationInfo)
+        HackApi.getPackageInfos(installedPkgs, userId, 0).values.forEach {
+            applicationList.add(it.applicationInfo)
         }
 
         val appInfoList = mutableListOf<AppInfo>()
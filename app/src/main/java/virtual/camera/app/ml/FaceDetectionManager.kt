@@ -2,17 +2,23 @@ package virtual.camera.app.ml
 
 import android.graphics.Bitmap
 import android.graphics.Rect
+import android.media.Image
+import android.os.SystemClock
+import androidx.annotation.OptIn
+import androidx.camera.core.ExperimentalGetImage
+import androidx.camera.core.ImageProxy
 import com.google.mlkit.vision.common.InputImage
 import com.google.mlkit.vision.face.Face
 import com.google.mlkit.vision.face.FaceDetection
 import com.google.mlkit.vision.face.FaceDetector
 import com.google.mlkit.vision.face.FaceDetectorOptions
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * Face Detection Manager - ML Kit integration for face detection
  * Implements face detection and validation for KYC/verification purposes
  */
-class FaceDetectionManager {
+open class FaceDetectionManager {
     
     /**
      * Face validation result data class
@@ -69,13 +75,14 @@ class FaceDetectionManager {
         FaceDetection.getClient(options)
     }
     
-    // Face detector with fast mode for real-time
+    // Face detector with fast mode for real-time, tracking ids let keyframes be matched up
     private val fastDetector: FaceDetector by lazy {
         val options = FaceDetectorOptions.Builder()
             .setPerformanceMode(FaceDetectorOptions.PERFORMANCE_MODE_FAST)
             .setLandmarkMode(FaceDetectorOptions.LANDMARK_MODE_NONE)
             .setClassificationMode(FaceDetectorOptions.CLASSIFICATION_MODE_ALL)
             .setMinFaceSize(0.15f)
+            .enableTracking()
             .build()
         FaceDetection.getClient(options)
     }
@@ -88,42 +95,132 @@ class FaceDetectionManager {
         fun onDetectionFailed(error: Exception)
     }
     
+    /**
+     * Maximum number of camera frame detections in flight, later frames are dropped
+     */
+    @Volatile
+    var maxInFlight = 1
+    
+    private val inFlight = AtomicInteger()
+    private val droppedFrames = AtomicInteger()
+    
+    /**
+     * Time from submitting an image to its result, for every detection
+     */
+    val detectionLatency = LatencyHistogram()
+    
     /**
      * Detect faces in bitmap using accurate mode
+     * @param rotationDegrees clockwise rotation that makes the bitmap upright
      */
     fun detectFaces(
         bitmap: Bitmap,
-        callback: FaceDetectionCallback
+        callback: FaceDetectionCallback,
+        rotationDegrees: Int = 0
     ) {
-        val image = InputImage.fromBitmap(bitmap, 0)
-        
-        accurateDetector.process(image)
-            .addOnSuccessListener { faces ->
-                val validationResult = validateFaces(faces)
-                callback.onFacesDetected(faces, validationResult)
-            }
-            .addOnFailureListener { e ->
-                callback.onDetectionFailed(e)
-            }
+        process(accurateDetector, InputImage.fromBitmap(bitmap, rotationDegrees), callback, null)
     }
     
     /**
      * Detect faces using fast mode (for real-time preview)
+     * @param rotationDegrees clockwise rotation that makes the bitmap upright
      */
     fun detectFacesFast(
         bitmap: Bitmap,
+        callback: FaceDetectionCallback,
+        rotationDegrees: Int = 0
+    ) {
+        process(fastDetector, InputImage.fromBitmap(bitmap, rotationDegrees), callback, null)
+    }
+    
+    /**
+     * Detect faces directly in a CameraX analysis frame, without converting it to a bitmap
+     * The proxy is closed once detection completes, or right away when the frame is dropped
+     * because [maxInFlight] detections are still pending.
+     * @return false if the frame was dropped
+     */
+    @OptIn(ExperimentalGetImage::class)
+    open fun detectFaces(
+        imageProxy: ImageProxy,
+        fast: Boolean,
+        callback: FaceDetectionCallback
+    ): Boolean {
+        val mediaImage = imageProxy.image
+        if (mediaImage == null || !acquireSlot()) {
+            imageProxy.close()
+            return false
+        }
+        val image = InputImage.fromMediaImage(mediaImage, imageProxy.imageInfo.rotationDegrees)
+        process(if (fast) fastDetector else accurateDetector, image, callback) {
+            inFlight.decrementAndGet()
+            imageProxy.close()
+        }
+        return true
+    }
+    
+    /**
+     * Detect faces in a YUV_420_888 camera image rotated by [rotationDegrees]
+     * The image must stay open until the callback is invoked; it is not closed here.
+     * @return false if the frame was dropped because [maxInFlight] detections are pending
+     */
+    fun detectFaces(
+        mediaImage: Image,
+        rotationDegrees: Int,
+        fast: Boolean,
         callback: FaceDetectionCallback
+    ): Boolean {
+        if (!acquireSlot()) return false
+        val image = InputImage.fromMediaImage(mediaImage, rotationDegrees)
+        process(if (fast) fastDetector else accurateDetector, image, callback) {
+            inFlight.decrementAndGet()
+        }
+        return true
+    }
+    
+    /**
+     * Camera frames dropped by the in-flight limit
+     */
+    fun getDroppedFrameCount(): Int = droppedFrames.get()
+    
+    private fun acquireSlot(): Boolean {
+        while (true) {
+            val current = inFlight.get()
+            if (current >= maxInFlight) {
+                droppedFrames.incrementAndGet()
+                return false
+            }
+            if (inFlight.compareAndSet(current, current + 1)) return true
+        }
+    }
+    
+    private fun process(
+        detector: FaceDetector,
+        image: InputImage,
+        callback: FaceDetectionCallback,
+        onComplete: (() -> Unit)?
     ) {
-        val image = InputImage.fromBitmap(bitmap, 0)
-        
-        fastDetector.process(image)
+        val start = SystemClock.elapsedRealtimeNanos()
+        val task = try {
+            detector.process(image)
+        } catch (e: Exception) {
+            // e.g. the detector was closed, still release the frame
+            onComplete?.invoke()
+            callback.onDetectionFailed(e)
+            return
+        }
+        task
             .addOnSuccessListener { faces ->
+                detectionLatency.record(SystemClock.elapsedRealtimeNanos() - start)
                 val validationResult = validateFaces(faces)
                 callback.onFacesDetected(faces, validationResult)
             }
             .addOnFailureListener { e ->
+                detectionLatency.record(SystemClock.elapsedRealtimeNanos() - start)
                 callback.onDetectionFailed(e)
             }
+            .addOnCompleteListener {
+                onComplete?.invoke()
+            }
     }
     
     /**
@@ -221,6 +318,26 @@ class FaceDetectionManager {
         }
     }
     
+    /**
+     * Whether the face is far enough from every validation threshold that a small pose change
+     * can't flip the validation or angle result; used to decide if a result may be reused
+     */
+    internal fun isConfident(face: Face): Boolean {
+        val eulerY = kotlin.math.abs(face.headEulerAngleY)
+        val eulerZ = kotlin.math.abs(face.headEulerAngleZ)
+        val angleMargin = minOf(
+            kotlin.math.abs(eulerY - FRONTAL_ANGLE_THRESHOLD),
+            kotlin.math.abs(eulerZ - FRONTAL_ANGLE_THRESHOLD),
+            kotlin.math.abs(eulerY - SIDE_ANGLE_MIN),
+            kotlin.math.abs(eulerY - SIDE_ANGLE_MAX)
+        )
+        val eyeMargin = minOf(
+            kotlin.math.abs((face.leftEyeOpenProbability ?: 0f) - EYE_OPEN_THRESHOLD),
+            kotlin.math.abs((face.rightEyeOpenProbability ?: 0f) - EYE_OPEN_THRESHOLD)
+        )
+        return angleMargin >= CONFIDENT_ANGLE_MARGIN && eyeMargin >= CONFIDENT_PROBABILITY_MARGIN
+    }
+    
     /**
      * Face angle enum for liveness detection
      */
@@ -251,5 +368,9 @@ class FaceDetectionManager {
         // Thresholds for side angle detection (liveness)
         private const val SIDE_ANGLE_MIN = 20f
         private const val SIDE_ANGLE_MAX = 45f
+        
+        // Distance from the thresholds above for a result to be reused between keyframes
+        private const val CONFIDENT_ANGLE_MARGIN = 4f
+        private const val CONFIDENT_PROBABILITY_MARGIN = 0.15f
     }
 }
@@ -0,0 +1,294 @@
+package virtual.camera.app.ml
+
+import android.graphics.Bitmap
+import android.graphics.Rect
+import android.os.Handler
+import android.os.Looper
+import androidx.camera.core.ImageProxy
+import com.google.mlkit.vision.face.Face
+import java.util.concurrent.Executor
+import kotlin.math.abs
+
+/**
+ * Hybrid Face Tracker - full face detection on keyframes only
+ * Between keyframes the last detection (bounding box, Euler angles, classification) is reused
+ * while the frame stays close to the keyframe. Closeness is a coarse luma signature compared
+ * over the whole frame and inside the face bounds. A keyframe is forced when the frame drifts,
+ * the tracked face changes id, the last result is near a validation threshold, or after
+ * [maxKeyframeInterval] frames. Reused results are delivered through [callbackExecutor], the main
+ * thread like ML Kit's by default, to [Callback.onFacesReused] if the callback is a [Callback].
+ * Frames arriving while a keyframe is still being detected are dropped. Call from a single thread.
+ */
+class HybridFaceTracker(
+    private val faceDetectionManager: FaceDetectionManager,
+    private val maxKeyframeInterval: Int = DEFAULT_KEYFRAME_INTERVAL,
+    private val callbackExecutor: Executor = mainThreadExecutor()
+) {
+
+    // luma signatures, SIGNATURE_SIZE x SIGNATURE_SIZE cells in upright image coordinates
+    private val keyframeSignature = IntArray(SIGNATURE_CELLS)
+    private val frameSignature = IntArray(SIGNATURE_CELLS)
+    private var signatureWidth = 0
+    private var signatureHeight = 0
+
+    // last keyframe result, written on the main thread
+    @Volatile
+    private var keyframe: Keyframe? = null
+    @Volatile
+    private var keyframePending = false
+    @Volatile
+    private var keyframeRequested = false
+    private var framesSinceKeyframe = 0
+    private var lastTrackingId: Int? = null
+
+    // bumped by every keyframe and invalidate, results of an older keyframe are not kept
+    @Volatile
+    private var keyframeSequence = 0
+    private var keyframeCount = 0L
+    private var propagatedCount = 0L
+    private var droppedCount = 0L
+
+    /**
+     * Tells reused results apart from fresh detections
+     */
+    interface Callback : FaceDetectionManager.FaceDetectionCallback {
+        /**
+         * The last keyframe's result, reused for a frame that stays close to it
+         */
+        fun onFacesReused(faces: List<Face>, validationResult: FaceDetectionManager.FaceValidationResult) {
+            onFacesDetected(faces, validationResult)
+        }
+    }
+
+    private class Keyframe(
+        val faces: List<Face>,
+        val result: FaceDetectionManager.FaceValidationResult,
+        val reusable: Boolean
+    )
+
+    /**
+     * Detect or propagate faces in a bitmap frame
+     * @param rotationDegrees clockwise rotation that makes the bitmap upright, e.g. the
+     * rotation of the analysis frame it was converted from
+     * @return false if the frame was dropped because a keyframe is still being detected;
+     * the callback is not called then
+     */
+    fun process(
+        bitmap: Bitmap,
+        callback: FaceDetectionManager.FaceDetectionCallback,
+        rotationDegrees: Int = 0
+    ): Boolean {
+        if (keyframePending) {
+            droppedCount++
+            return false
+        }
+        computeSignature(bitmap, rotationDegrees)
+        if (tryPropagate(callback)) return true
+        faceDetectionManager.detectFacesFast(bitmap, keyframeCallback(startKeyframe(), callback), rotationDegrees)
+        return true
+    }
+
+    /**
+     * Detect or propagate faces in a CameraX analysis frame, the proxy is always closed
+     * @return false if the frame was dropped, because a keyframe is still being detected or by
+     * the detection in-flight limit; the callback is not called then
+     */
+    fun process(imageProxy: ImageProxy, callback: FaceDetectionManager.FaceDetectionCallback): Boolean {
+        if (keyframePending) {
+            droppedCount++
+            imageProxy.close()
+            return false
+        }
+        computeSignature(imageProxy)
+        if (tryPropagate(callback)) {
+            imageProxy.close()
+            return true
+        }
+        val sequence = startKeyframe()
+        if (!faceDetectionManager.detectFaces(imageProxy, true, keyframeCallback(sequence, callback))) {
+            // the keyframe signature was overwritten, so the previous result can't be reused
+            keyframeSequence++
+            keyframe = null
+            keyframePending = false
+            keyframeCount--
+            droppedCount++
+            return false
+        }
+        return true
+    }
+
+    /**
+     * Run a full detection on the next frame, keeping the current result until then
+     */
+    fun requestKeyframe() {
+        keyframeRequested = true
+    }
+
+    /**
+     * Force a full detection on the next frame
+     */
+    fun invalidate() {
+        keyframeSequence++
+        keyframe = null
+        lastTrackingId = null
+    }
+
+    fun getKeyframeCount(): Long = keyframeCount
+
+    fun getPropagatedCount(): Long = propagatedCount
+
+    fun getDroppedCount(): Long = droppedCount
+
+    private fun tryPropagate(callback: FaceDetectionManager.FaceDetectionCallback): Boolean {
+        val last = keyframe
+        if (last == null || !last.reusable || keyframeRequested || framesSinceKeyframe >= maxKeyframeInterval) {
+            return false
+        }
+        if (meanDifference(null) > MAX_FRAME_DIFFERENCE) return false
+        val bounds = last.faces.firstOrNull()?.boundingBox
+        if (bounds != null && meanDifference(bounds) > MAX_FACE_DIFFERENCE) return false
+        framesSinceKeyframe++
+        propagatedCount++
+        if (callback is Callback) {
+            callbackExecutor.execute { callback.onFacesReused(last.faces, last.result) }
+        } else {
+            callbackExecutor.execute { callback.onFacesDetected(last.faces, last.result) }
+        }
+        return true
+    }
+
+    /**
+     * @return the sequence number of the new keyframe
+     */
+    private fun startKeyframe(): Int {
+        keyframePending = true
+        keyframeRequested = false
+        framesSinceKeyframe = 0
+        keyframeCount++
+        System.arraycopy(frameSignature, 0, keyframeSignature, 0, SIGNATURE_CELLS)
+        return ++keyframeSequence
+    }
+
+    private fun keyframeCallback(sequence: Int, callback: FaceDetectionManager.FaceDetectionCallback) =
+        object : FaceDetectionManager.FaceDetectionCallback {
+            override fun onFacesDetected(
+                faces: List<Face>,
+                validationResult: FaceDetectionManager.FaceValidationResult
+            ) {
+                // invalidated while detecting, the result no longer matches the keyframe signature
+                if (sequence == keyframeSequence) {
+                    val trackingId = faces.singleOrNull()?.trackingId
+                    // a new or lost track must be confirmed by a second keyframe before reuse
+                    val sameTrack = trackingId != null && trackingId == lastTrackingId
+                    lastTrackingId = trackingId
+                    val reusable = when (faces.size) {
+                        0 -> true
+                        1 -> sameTrack && faceDetectionManager.isConfident(faces[0])
+                        else -> false
+                    }
+                    keyframe = Keyframe(faces, validationResult, reusable)
+                }
+                keyframePending = false
+                callback.onFacesDetected(faces, validationResult)
+            }
+
+            override fun onDetectionFailed(error: Exception) {
+                if (sequence == keyframeSequence) keyframe = null
+                keyframePending = false
+                callback.onDetectionFailed(error)
+            }
+        }
+
+    /**
+     * Mean absolute luma difference to the keyframe, over the frame or the cells inside [bounds]
+     */
+    internal fun meanDifference(bounds: Rect?): Int {
+        var x0 = 0
+        var y0 = 0
+        var x1 = SIGNATURE_SIZE
+        var y1 = SIGNATURE_SIZE
+        if (bounds != null && signatureWidth > 0 && signatureHeight > 0) {
+            x0 = (bounds.left * SIGNATURE_SIZE / signatureWidth).coerceIn(0, SIGNATURE_SIZE - 1)
+            y0 = (bounds.top * SIGNATURE_SIZE / signatureHeight).coerceIn(0, SIGNATURE_SIZE - 1)
+            x1 = ((bounds.right * SIGNATURE_SIZE + signatureWidth - 1) / signatureWidth).coerceIn(x0 + 1, SIGNATURE_SIZE)
+            y1 = ((bounds.bottom * SIGNATURE_SIZE + signatureHeight - 1) / signatureHeight).coerceIn(y0 + 1, SIGNATURE_SIZE)
+        }
+        var sum = 0
+        for (y in y0 until y1) {
+            for (x in x0 until x1) {
+                val i = y * SIGNATURE_SIZE + x
+                sum += abs(frameSignature[i] - keyframeSignature[i])
+            }
+        }
+        return sum / ((x1 - x0) * (y1 - y0))
+    }
+
+    private fun computeSignature(bitmap: Bitmap, rotation: Int) {
+        computeSignature(bitmap.width, bitmap.height, rotation) { x, y ->
+            val c = bitmap.getPixel(x, y)
+            // integer BT.601 luma
+            (77 * ((c shr 16) and 0xFF) + 150 * ((c shr 8) and 0xFF) + 29 * (c and 0xFF)) shr 8
+        }
+    }
+
+    internal fun computeSignature(imageProxy: ImageProxy) {
+        val plane = imageProxy.planes[0]
+        val buffer = plane.buffer
+        val base = buffer.position()
+        computeSignature(imageProxy.width, imageProxy.height, imageProxy.imageInfo.rotationDegrees) { x, y ->
+            buffer.get(base + y * plane.rowStride + x * plane.pixelStride).toInt() and 0xFF
+        }
+    }
+
+    /**
+     * Sample [luma] of a width x height image at the cell centres of the upright (rotated)
+     * frame, which is the coordinate space ML Kit reports bounding boxes in
+     */
+    private inline fun computeSignature(width: Int, height: Int, rotation: Int, luma: (Int, Int) -> Int) {
+        val swap = rotation == 90 || rotation == 270
+        signatureWidth = if (swap) height else width
+        signatureHeight = if (swap) width else height
+        for (gy in 0 until SIGNATURE_SIZE) {
+            val uy = (gy * 2 + 1) * signatureHeight / (SIGNATURE_SIZE * 2)
+            for (gx in 0 until SIGNATURE_SIZE) {
+                val ux = (gx * 2 + 1) * signatureWidth / (SIGNATURE_SIZE * 2)
+                val sx: Int
+                val sy: Int
+                when (rotation) {
+                    90 -> { sx = uy; sy = height - 1 - ux }
+                    180 -> { sx = width - 1 - ux; sy = height - 1 - uy }
+                    270 -> { sx = width - 1 - uy; sy = ux }
+                    else -> { sx = ux; sy = uy }
+                }
+                frameSignature[gy * SIGNATURE_SIZE + gx] = luma(sx, sy)
+            }
+        }
+    }
+
+    /**
+     * Luma of the signature cell at ([x], [y]) of the last computed frame
+     */
+    internal fun signatureAt(x: Int, y: Int): Int = frameSignature[y * SIGNATURE_SIZE + x]
+
+    /**
+     * Take the last computed frame signature as the keyframe one
+     */
+    internal fun markKeyframeSignature() {
+        System.arraycopy(frameSignature, 0, keyframeSignature, 0, SIGNATURE_CELLS)
+    }
+
+    companion object {
+        const val DEFAULT_KEYFRAME_INTERVAL = 6
+        internal const val SIGNATURE_SIZE = 16
+        private const val SIGNATURE_CELLS = SIGNATURE_SIZE * SIGNATURE_SIZE
+
+        // mean absolute luma difference (0-255) tolerated before forcing a keyframe
+        private const val MAX_FRAME_DIFFERENCE = 6
+        private const val MAX_FACE_DIFFERENCE = 8
+
+        private fun mainThreadExecutor(): Executor {
+            val handler = Handler(Looper.getMainLooper())
+            return Executor { handler.post(it) }
+        }
+    }
+}
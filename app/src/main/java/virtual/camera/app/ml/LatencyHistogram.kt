@@ -0,0 +1,64 @@
+package virtual.camera.app.ml
+
+import java.util.concurrent.atomic.AtomicIntegerArray
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Latency Histogram - lock free latency recorder with percentile queries
+ * 1 ms buckets up to [MAX_MS]; slower samples land in the last bucket.
+ */
+class LatencyHistogram {
+
+    private val buckets = AtomicIntegerArray(MAX_MS + 1)
+    private val count = AtomicLong()
+    private val totalNanos = AtomicLong()
+
+    fun record(nanos: Long) {
+        val ms = (nanos / 1_000_000L).coerceIn(0L, MAX_MS.toLong()).toInt()
+        buckets.incrementAndGet(ms)
+        count.incrementAndGet()
+        totalNanos.addAndGet(nanos)
+    }
+
+    fun getCount(): Long = count.get()
+
+    fun getMeanMs(): Float {
+        val n = count.get()
+        return if (n == 0L) 0f else totalNanos.get() / 1_000_000f / n
+    }
+
+    /**
+     * Upper bound in ms of the bucket holding the given percentile (0-100), 0 if empty
+     */
+    fun percentile(percent: Float): Int {
+        val n = count.get()
+        if (n == 0L) return 0
+        val rank = ceilRank(n, percent)
+        var seen = 0L
+        for (ms in 0..MAX_MS) {
+            seen += buckets.get(ms)
+            if (seen >= rank) return ms + 1
+        }
+        return MAX_MS + 1
+    }
+
+    fun reset() {
+        for (i in 0..MAX_MS) buckets.set(i, 0)
+        count.set(0)
+        totalNanos.set(0)
+    }
+
+    override fun toString(): String {
+        return "n=${getCount()} mean=${"%.1f".format(getMeanMs())}ms " +
+                "p50<=${percentile(50f)}ms p90<=${percentile(90f)}ms p99<=${percentile(99f)}ms"
+    }
+
+    private fun ceilRank(n: Long, percent: Float): Long {
+        val rank = kotlin.math.ceil(n * percent.coerceIn(0f, 100f) / 100.0).toLong()
+        return rank.coerceIn(1L, n)
+    }
+
+    companion object {
+        const val MAX_MS = 1000
+    }
+}
@@ -1,6 +1,7 @@
 package virtual.camera.app.ml
 
 import android.graphics.Bitmap
+import virtual.camera.app.camera.BestFrameSelector
 import com.google.mlkit.vision.face.Face
 
 /**
@@ -64,14 +65,33 @@ class LivenessDetectionManager(
     private var leftFaceData: ByteArray? = null
     private var rightFaceData: ByteArray? = null
     
+    /**
+     * When set, each angle is captured upright from the sharpest analysis frame taken at or after
+     * the validated frame, instead of compressing the frame bitmap; needs the frame timestamps
+     * passed to [processFrame]
+     */
+    var frameSelector: BestFrameSelector? = null
+    
     // Frame counters for stability
     private var consecutiveValidFrames = 0
     
     private var callback: LivenessCallback? = null
     
+    // Runs full detection on keyframes only and reuses it while the pose holds still
+    private val faceTracker = HybridFaceTracker(faceDetectionManager)
+    
+    /**
+     * Use keyframe tracking instead of a full detection on every frame; reused results count
+     * toward the consecutive valid frames like fresh ones, but an angle is only captured on a
+     * fresh detection, requested as soon as the streak is long enough
+     */
+    var useTracking = true
+    
     companion object {
         private const val REQUIRED_CONSECUTIVE_FRAMES = 5
         private const val MIN_CONFIDENCE_SCORE = 0.7f
+        // Upper bound on the age of a selected frame, it must not predate the validated frame either
+        private const val SELECTED_FRAME_MAX_AGE_MS = 300L
     }
     
     /**
@@ -102,13 +122,19 @@ class LivenessDetectionManager(
         leftFaceData = null
         rightFaceData = null
         consecutiveValidFrames = 0
+        faceTracker.invalidate()
     }
     
     /**
      * Process frame for liveness detection
+     * @param timestampNanos [androidx.camera.core.ImageInfo.getTimestamp] of the analysis frame
+     * the bitmap comes from, 0 if unknown
+     * @param rotationDegrees clockwise rotation that makes the bitmap upright
      */
     fun processFrame(
         bitmap: Bitmap,
+        timestampNanos: Long = 0L,
+        rotationDegrees: Int = 0,
         onFrameProcessed: (Boolean) -> Unit
     ) {
         if (currentState == LivenessState.COMPLETED || currentState == LivenessState.FAILED) {
@@ -116,11 +142,22 @@ class LivenessDetectionManager(
             return
         }
         
-        faceDetectionManager.detectFacesFast(bitmap, object : FaceDetectionManager.FaceDetectionCallback {
+        val detectionCallback = object : HybridFaceTracker.Callback {
+            override fun onFacesReused(
+                faces: List<Face>,
+                validationResult: FaceDetectionManager.FaceValidationResult
+            ) {
+                onFacesResult(faces, false)
+            }
+            
             override fun onFacesDetected(
                 faces: List<Face>,
                 validationResult: FaceDetectionManager.FaceValidationResult
             ) {
+                onFacesResult(faces, true)
+            }
+            
+            private fun onFacesResult(faces: List<Face>, fresh: Boolean) {
                 if (faces.isEmpty()) {
                     consecutiveValidFrames = 0
                     onFrameProcessed(false)
@@ -134,10 +171,14 @@ class LivenessDetectionManager(
                     consecutiveValidFrames++
                     
                     if (consecutiveValidFrames >= REQUIRED_CONSECUTIVE_FRAMES) {
-                        captureCurrentAngle(bitmap)
-                        moveToNextState()
-                        onFrameProcessed(true)
-                        return
+                        if (fresh) {
+                            captureCurrentAngle(bitmap, timestampNanos)
+                            moveToNextState()
+                            onFrameProcessed(true)
+                            return
+                        }
+                        // a reused pose is not captured, measure the next frame
+                        faceTracker.requestKeyframe()
                     }
                 } else {
                     consecutiveValidFrames = 0
@@ -151,7 +192,15 @@ class LivenessDetectionManager(
                 callback?.onError(error.message ?: "Lỗi phát hiện khuôn mặt")
                 onFrameProcessed(false)
             }
-        })
+        }
+        
+        if (useTracking) {
+            if (!faceTracker.process(bitmap, detectionCallback, rotationDegrees)) {
+                onFrameProcessed(false)
+            }
+        } else {
+            faceDetectionManager.detectFacesFast(bitmap, detectionCallback, rotationDegrees)
+        }
     }
     
     /**
@@ -169,8 +218,18 @@ class LivenessDetectionManager(
     /**
      * Capture current angle image
      */
-    private fun captureCurrentAngle(bitmap: Bitmap) {
-        val imageBytes = bitmapToByteArray(bitmap)
+    private fun captureCurrentAngle(bitmap: Bitmap, timestampNanos: Long) {
+        // without the frame time an older frame, still showing the previous pose, could be picked
+        val selected = if (timestampNanos > 0L) {
+            frameSelector?.captureJpeg(
+                maxAgeMs = SELECTED_FRAME_MAX_AGE_MS,
+                minTimestampNanos = timestampNanos,
+                upright = true
+            )
+        } else {
+            null
+        }
+        val imageBytes = selected?.jpeg ?: bitmapToByteArray(bitmap)
         
         when (currentState) {
             LivenessState.DETECTING_FRONT -> {
@@ -2,8 +2,35 @@ package virtual.camera.app.settings;
 
 import android.util.Log;
 
+import com.hack.Slog;
+
+import java.util.function.Supplier;
+
+/**
+ * debug logging of the app, dropped unless {@link Slog} is at debug level.
+ */
 public class LogUtil {
+    private static final String TAG = "VCamera";
+
+    public static boolean isEnabled() {
+        return Slog.isLoggable(Log.DEBUG);
+    }
+
     public static void log(String msg) {
-        Log.e("VCamera", msg);
+        if (isEnabled()) {
+            Log.e(TAG, msg);
+        }
+    }
+
+    public static void log(String msg, Object arg) {
+        if (isEnabled()) {
+            Slog.e(TAG, msg, arg);
+        }
+    }
+
+    public static void log(Supplier<String> msg) {
+        if (isEnabled()) {
+            Log.e(TAG, String.valueOf(msg.get()));
+        }
     }
 }
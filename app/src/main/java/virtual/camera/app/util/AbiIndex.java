@@ -0,0 +1,162 @@
+package virtual.camera.app.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent apk -> abi flags index, keyed by (sourceDir, length, lastModified),
+ * so only apks that changed since the last run get their zip directory read again.
+ *
+ * File layout: magic, version, count, then per entry: path(UTF), length, lastModified, abis.
+ * The abis byte holds the ABI_* flags found in its low bits and, above {@link #WANTED_SHIFT},
+ * the abis the scan was stopped early for; 0 there means a full scan.
+ */
+class AbiIndex {
+    private static final int MAGIC = 0x41424958; // "ABIX"
+    private static final int VERSION = 1;
+    private static final int WANTED_SHIFT = 4;
+
+    private final File mFile;
+    private final Map<String, Entry> mEntries = new ConcurrentHashMap<>();
+    private volatile boolean mLoaded;
+    private volatile boolean mDirty;
+
+    AbiIndex(File file) {
+        mFile = file;
+    }
+
+    /**
+     * @param wanted the abis the caller asks about, see {@link AbiUtils#scanAbis(File, int)}.
+     */
+    int getAbis(File apkFile, int wanted) {
+        ensureLoaded();
+        String path = apkFile.getPath();
+        long length = apkFile.length();
+        long lastModified = apkFile.lastModified();
+        Entry entry = mEntries.get(path);
+        if (entry != null && entry.length == length && entry.lastModified == lastModified
+                && entry.answers(wanted)) {
+            return entry.abis;
+        }
+        int abis = AbiUtils.scanAbis(apkFile, wanted);
+        if (abis != AbiUtils.SCAN_FAILED) {
+            // a scan that did not stop early saw every entry
+            int scanned = (abis & wanted) != 0 ? wanted : AbiUtils.ABI_ALL;
+            mEntries.put(path, new Entry(length, lastModified, abis, scanned));
+            mDirty = true;
+        }
+        return abis;
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        synchronized (this) {
+            if (mLoaded) {
+                return;
+            }
+            load();
+            mLoaded = true;
+        }
+    }
+
+    private void load() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long length = in.readLong();
+                long lastModified = in.readLong();
+                int value = in.readByte();
+                int scanned = value >>> WANTED_SHIFT;
+                mEntries.put(path, new Entry(length, lastModified, value & AbiUtils.ABI_ALL,
+                        scanned == 0 ? AbiUtils.ABI_ALL : scanned));
+            }
+        } catch (FileNotFoundException ignored) {
+        } catch (IOException e) {
+            // a truncated index only costs a rescan
+            mEntries.clear();
+        } finally {
+            AbiUtils.close(in);
+        }
+    }
+
+    /**
+     * rewrites the index atomically, dropping apks that no longer exist.
+     */
+    synchronized void save() {
+        if (!mDirty) {
+            return;
+        }
+        mDirty = false;
+        for (String path : mEntries.keySet()) {
+            if (!new File(path).exists()) {
+                mEntries.remove(path);
+            }
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            Map<String, Entry> snapshot = new HashMap<>(mEntries);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> e : snapshot.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.length);
+                out.writeLong(entry.lastModified);
+                out.writeByte(entry.abis
+                        | (entry.scanned == AbiUtils.ABI_ALL ? 0 : entry.scanned << WANTED_SHIFT));
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+        } finally {
+            AbiUtils.close(out);
+        }
+    }
+
+    private static class Entry {
+        final long length;
+        final long lastModified;
+        final int abis;
+        /**
+         * the abis the scan stopped early for, {@link AbiUtils#ABI_ALL} for a full scan.
+         */
+        final int scanned;
+
+        Entry(long length, long lastModified, int abis, int scanned) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.abis = abis;
+            this.scanned = scanned;
+        }
+
+        boolean answers(int wanted) {
+            return scanned == AbiUtils.ABI_ALL || scanned == wanted || (abis & wanted) != 0;
+        }
+    }
+}
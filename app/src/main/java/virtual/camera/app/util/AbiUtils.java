@@ -1,73 +1,221 @@
 package virtual.camera.app.util;
 
-import android.os.Build;
-import android.os.Process;
-
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
+import virtual.camera.app.app.App;
+
 public class AbiUtils {
-    private final Set<String> mLibs = new HashSet<>();
-    private static final Map<File, AbiUtils> sAbiUtilsMap = new HashMap<>();
+    static final int ABI_ARM64_V8A = 1;
+    static final int ABI_ARMEABI = 1 << 1;
+    static final int ABI_ARMEABI_V7A = 1 << 2;
+    static final int ABI_32 = ABI_ARMEABI | ABI_ARMEABI_V7A;
+    static final int ABI_ALL = ABI_ARM64_V8A | ABI_32;
+    static final int SCAN_FAILED = -1;
+
+    private static final byte[] LIB_DIR = "lib/".getBytes();
+    private static final byte[] ARM64_V8A = "arm64-v8a".getBytes();
+    private static final byte[] ARMEABI = "armeabi".getBytes();
+    private static final byte[] ARMEABI_V7A = "armeabi-v7a".getBytes();
+
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final int CD_SIG = 0x02014b50;
+    private static final int CD_HEADER_SIZE = 46;
+
+    private static volatile AbiIndex sIndex;
+
+    private final int mAbis;
 
     public static boolean isSupport(File apkFile) {
-        AbiUtils abiUtils = sAbiUtilsMap.get(apkFile);
-        if (abiUtils == null) {
-            abiUtils = new AbiUtils(apkFile);
-            sAbiUtilsMap.put(apkFile, abiUtils);
-        }
+        boolean is64Bit = AbiCore.is64Bit();
+        int abis = getIndex().getAbis(apkFile, is64Bit ? ABI_ARM64_V8A : ABI_32);
+        AbiUtils abiUtils = new AbiUtils(abis == SCAN_FAILED ? 0 : abis);
         if (abiUtils.isEmptyAib()) {
             return true;
         }
 
-        if (AbiCore.is64Bit()) {
+        if (is64Bit) {
             return abiUtils.is64Bit();
         } else {
             return abiUtils.is32Bit();
         }
     }
 
+    /**
+     * writes the abi results found so far to disk, call it once a scan is done.
+     */
+    public static void flush() {
+        getIndex().save();
+    }
+
+    private static AbiIndex getIndex() {
+        if (sIndex == null) {
+            synchronized (AbiUtils.class) {
+                if (sIndex == null) {
+                    sIndex = new AbiIndex(new File(App.getContext().getFilesDir(), "abi.idx"));
+                }
+            }
+        }
+        return sIndex;
+    }
+
     public AbiUtils(File apkFile) {
+        this(Math.max(scanAbis(apkFile), 0));
+    }
+
+    private AbiUtils(int abis) {
+        mAbis = abis;
+    }
+
+    static int scanAbis(File apkFile) {
+        return scanAbis(apkFile, ABI_ALL);
+    }
+
+    /**
+     * collects the abi dirs under lib/ from the zip central directory only.
+     * @param wanted the abis the caller asks about; the scan stops at the first of them found,
+     *               or once every abi has been seen for {@link #ABI_ALL}, so the flags returned
+     *               may be a subset of the apk's abis.
+     * @return the ABI_* flags, or {@link #SCAN_FAILED} if the apk could not be read.
+     */
+    static int scanAbis(File apkFile, int wanted) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(apkFile, "r");
+            FileChannel channel = file.getChannel();
+            long length = channel.size();
+            int tailSize = (int) Math.min(length, EOCD_SIZE + MAX_COMMENT_SIZE);
+            ByteBuffer tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+            long tailStart = length - tailSize;
+            while (tail.hasRemaining()) {
+                if (channel.read(tail, tailStart + tail.position()) < 0) {
+                    return SCAN_FAILED;
+                }
+            }
+            int eocd = -1;
+            for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+                if (tail.getInt(i) == EOCD_SIG) {
+                    eocd = i;
+                    break;
+                }
+            }
+            if (eocd < 0) {
+                return scanAbisSlow(apkFile);
+            }
+            long cdSize = tail.getInt(eocd + 12) & 0xFFFFFFFFL;
+            long cdOffset = tail.getInt(eocd + 16) & 0xFFFFFFFFL;
+            if (cdSize == 0xFFFFFFFFL || cdOffset == 0xFFFFFFFFL || cdOffset + cdSize > length) {
+                // zip64, leave it to ZipFile
+                return scanAbisSlow(apkFile);
+            }
+            ByteBuffer cd = channel.map(FileChannel.MapMode.READ_ONLY, cdOffset, cdSize)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            int abis = 0;
+            int pos = 0;
+            int end = (int) cdSize;
+            while (pos + CD_HEADER_SIZE <= end && cd.getInt(pos) == CD_SIG) {
+                int nameLength = cd.getShort(pos + 28) & 0xFFFF;
+                int extraLength = cd.getShort(pos + 30) & 0xFFFF;
+                int commentLength = cd.getShort(pos + 32) & 0xFFFF;
+                if (pos + CD_HEADER_SIZE + nameLength > end) {
+                    // malformed entry, ZipFile copes with more layouts
+                    return scanAbisSlow(apkFile);
+                }
+                abis |= matchAbi(cd, pos + CD_HEADER_SIZE, nameLength);
+                if (wanted == ABI_ALL ? abis == ABI_ALL : (abis & wanted) != 0) {
+                    break;
+                }
+                pos += CD_HEADER_SIZE + nameLength + extraLength + commentLength;
+            }
+            return abis;
+        } catch (IndexOutOfBoundsException e) {
+            return scanAbisSlow(apkFile);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return SCAN_FAILED;
+        } finally {
+            close(file);
+        }
+    }
+
+    private static int matchAbi(ByteBuffer cd, int name, int nameLength) {
+        if (!startsWith(cd, name, nameLength, LIB_DIR)) {
+            return 0;
+        }
+        int abi = name + LIB_DIR.length;
+        int abiLength = nameLength - LIB_DIR.length;
+        if (isDir(cd, abi, abiLength, ARM64_V8A)) {
+            return ABI_ARM64_V8A;
+        } else if (isDir(cd, abi, abiLength, ARMEABI_V7A)) {
+            return ABI_ARMEABI_V7A;
+        } else if (isDir(cd, abi, abiLength, ARMEABI)) {
+            return ABI_ARMEABI;
+        }
+        return 0;
+    }
+
+    private static boolean isDir(ByteBuffer cd, int pos, int length, byte[] dir) {
+        return startsWith(cd, pos, length, dir)
+                && (length == dir.length || cd.get(pos + dir.length) == '/');
+    }
+
+    private static boolean startsWith(ByteBuffer cd, int pos, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (cd.get(pos + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int scanAbisSlow(File apkFile) {
+        int abis = 0;
         ZipFile zipFile = null;
         try {
             zipFile = new ZipFile(apkFile);
             Enumeration<? extends ZipEntry> entries = zipFile.entries();
             while (entries.hasMoreElements()) {
-                ZipEntry zipEntry = entries.nextElement();
-                String name = zipEntry.getName();
-                if (name.startsWith("lib/arm64-v8a")) {
-                    mLibs.add("arm64-v8a");
-                } else if (name.startsWith("lib/armeabi")) {
-                    mLibs.add("armeabi");
-                } else if (name.startsWith("lib/armeabi-v7a")) {
-                    mLibs.add("armeabi-v7a");
+                String name = entries.nextElement().getName();
+                if (name.startsWith("lib/arm64-v8a/")) {
+                    abis |= ABI_ARM64_V8A;
+                } else if (name.startsWith("lib/armeabi-v7a/")) {
+                    abis |= ABI_ARMEABI_V7A;
+                } else if (name.startsWith("lib/armeabi/")) {
+                    abis |= ABI_ARMEABI;
                 }
             }
         } catch (Exception e) {
             e.printStackTrace();
+            return SCAN_FAILED;
         } finally {
             close(zipFile);
         }
+        return abis;
     }
 
     public boolean is64Bit() {
-        return mLibs.contains("arm64-v8a");
+        return (mAbis & ABI_ARM64_V8A) != 0;
     }
 
     public boolean is32Bit() {
-        return mLibs.contains("armeabi") || mLibs.contains("armeabi-v7a");
+        return (mAbis & (ABI_ARMEABI | ABI_ARMEABI_V7A)) != 0;
     }
 
     public boolean isEmptyAib() {
-        return mLibs.isEmpty();
+        return mAbis == 0;
     }
 
     public static void close(Closeable... closeables) {
@@ -0,0 +1,48 @@
+package virtual.camera.app.util
+
+import android.content.pm.PackageManager
+import android.graphics.drawable.Drawable
+import android.util.LruCache
+import android.widget.ImageView
+import virtual.camera.app.app.App
+import java.util.concurrent.Executors
+
+/**
+ *
+ * @Description: 列表图标懒加载，行绑定时才去加载host应用图标
+ */
+object AppIconLoader {
+
+    private const val CACHE_SIZE = 64
+
+    private val iconCache = LruCache<String, Drawable>(CACHE_SIZE)
+
+    private val loadExecutor = Executors.newSingleThreadExecutor()
+
+    fun bind(view: ImageView, packageName: String) {
+        view.tag = packageName
+        val cached = iconCache.get(packageName)
+        if (cached != null) {
+            view.setImageDrawable(cached)
+            return
+        }
+        view.setImageDrawable(null)
+        loadExecutor.execute {
+            // the row may have been recycled for another package while waiting
+            if (view.tag != packageName) {
+                return@execute
+            }
+            val icon = try {
+                App.getContext().packageManager.getApplicationIcon(packageName)
+            } catch (e: PackageManager.NameNotFoundException) {
+                return@execute
+            }
+            iconCache.put(packageName, icon)
+            HandlerUtil.runOnMain {
+                if (view.tag == packageName) {
+                    view.setImageDrawable(icon)
+                }
+            }
+        }
+    }
+}
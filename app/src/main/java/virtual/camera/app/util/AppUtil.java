@@ -4,11 +4,29 @@ import android.app.ActivityManager;
 import android.content.Context;
 import android.os.Process;
 
+import com.hack.server.core.transact.AgentProcessRegistry;
+
 import virtual.camera.app.app.App;
 import virtual.camera.app.settings.LogUtil;
 
 public class AppUtil {
+    /**
+     * agents that were running before this process started never bound to it,
+     * so the first kill still scans the running processes once.
+     */
+    private static volatile boolean sFullScanDone;
+
     public static void killAllApps() {
+        int killed = AgentProcessRegistry.getInstance().killAll();
+        LogUtil.log("killed %s registered agents", killed);
+        if (sFullScanDone) {
+            return;
+        }
+        killAllAppsByScan();
+        sFullScanDone = true;
+    }
+
+    private static void killAllAppsByScan() {
         try {
             int uid = App.getContext().getPackageManager().getApplicationInfo(App.getContext().getPackageName(), 0).uid;
             String str = App.getContext().getPackageName();
@@ -19,7 +37,7 @@ public class AppUtil {
                 if(processInfo.processName.startsWith(str) && !processInfo.processName.contains(":agent")){
                     continue;
                 }
-                LogUtil.log("kill processInfo:"+processInfo.processName);
+                LogUtil.log("kill processInfo:%s", processInfo.processName);
                 Process.killProcess(processInfo.pid);
             }
         } catch (Throwable th) {
@@ -30,6 +30,8 @@ class ListActivity : BaseActivity() {
 
     private var appList: List<InstalledAppBean> = ArrayList()
 
+    private var query: String = ""
+
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         setContentView(viewBinding.root)
@@ -50,6 +52,7 @@ class ListActivity : BaseActivity() {
     private fun initSearchView() {
         viewBinding.searchView.setOnQueryTextListener(object : SimpleSearchView.OnQueryTextListener {
             override fun onQueryTextChange(newText: String): Boolean {
+                query = newText
                 filterApp(newText)
                 return true
             }
@@ -89,12 +92,11 @@ class ListActivity : BaseActivity() {
 
         viewModel.appsLiveData.observe(this) {
             if (it != null) {
+                // the list grows while the scan is running, keep the user's filter
                 this.appList = it
-                viewBinding.searchView.setQuery("", false)
-                filterApp("")
+                filterApp(query)
                 if (it.isNotEmpty()) {
                     viewBinding.stateView.showContent()
-                    viewModel.previewInstalledList()
                 } else {
                     viewBinding.stateView.showEmpty()
                 }
@@ -7,6 +7,7 @@ import cbfg.rvadapter.RVHolderFactory
 import virtual.camera.app.R
 import virtual.camera.app.bean.InstalledAppBean
 import virtual.camera.app.databinding.ItemPackageBinding
+import virtual.camera.app.util.AppIconLoader
 
 /**
  *
@@ -25,7 +26,11 @@ class ListAdapter : RVHolderFactory() {
 
         val binding = ItemPackageBinding.bind(itemView)
         override fun setContent(item: InstalledAppBean, isSelected: Boolean, payload: Any?) {
-            binding.icon.setImageDrawable(item.icon)
+            if (item.icon != null) {
+                binding.icon.setImageDrawable(item.icon)
+            } else {
+                AppIconLoader.bind(binding.icon, item.packageName)
+            }
             binding.name.text = item.name
             binding.packageName.text = item.packageName
             binding.cornerLabel.visibility = if (item.isInstall) {
@@ -51,7 +51,7 @@ public class SettingFragment extends BaseFragment {
             mInput.setText(video.toString());
             mHasOpenDocuments = true;
         }
-        LogUtil.log("onVideoChoiseDone:" + video);
+        LogUtil.log("onVideoChoiseDone:%s", video);
     }
 
     @Nullable
@@ -0,0 +1,169 @@
+package virtual.camera.app.camera
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import virtual.camera.app.camera.YuvTestImage.Layout
+
+/**
+ * NV21 packing, ring, age and timestamp selection of [BestFrameSelector], on the copies it
+ * encodes; the JPEG encoding itself needs the device
+ */
+class BestFrameSelectorTest {
+
+    private var now = 10_000L
+    private val selector = BestFrameSelector(capacity = 3).also { it.clock = { now } }
+
+    @Test
+    fun packsEveryLayoutAsNv21() {
+        for (layout in Layout.values()) {
+            for (rowPadding in intArrayOf(0, 12)) {
+                val image = YuvTestImage(32, 18, layout, rowPadding)
+                selector.clear()
+                selector.offer(FakeImageProxy(image), SHARP, BRIGHTNESS, CONTRAST)
+                val frame = selector.copyBest(MAX_AGE_MS)!!
+                assertArrayEquals("$layout padding $rowPadding", nv21(image), frame.data.copyOf(32 * 18 * 3 / 2))
+            }
+        }
+    }
+
+    @Test
+    fun offerLeavesBufferPositions() {
+        val image = YuvTestImage(32, 18, Layout.NV21, rowPadding = 4)
+        selector.offer(FakeImageProxy(image), SHARP, BRIGHTNESS, CONTRAST)
+        assertEquals(0, image.yBuffer.position())
+        assertEquals(0, image.vBuffer.position())
+        assertEquals(1, image.uBuffer.position())
+    }
+
+    @Test
+    fun rejectsFramesBelowTheThresholds() {
+        offer(sharpness = CameraXManager.BLUR_THRESHOLD - 1)
+        selector.offer(FakeImageProxy(image()), SHARP, CameraXManager.QUALITY_THRESHOLD - 1, CONTRAST)
+        selector.offer(FakeImageProxy(image()), SHARP, 240f, CONTRAST)
+        selector.offer(FakeImageProxy(image()), SHARP, BRIGHTNESS, 10f)
+        assertFalse(selector.hasFrame(MAX_AGE_MS))
+        assertNull(selector.copyBest(MAX_AGE_MS))
+    }
+
+    @Test
+    fun picksTheSharpestFrame() {
+        offer(sharpness = 150f, timestampNanos = 1)
+        offer(sharpness = 400f, timestampNanos = 2)
+        offer(sharpness = 250f, timestampNanos = 3)
+        val frame = selector.copyBest(MAX_AGE_MS)!!
+        assertEquals(400f, frame.sharpness, 0f)
+        assertEquals(2L, frame.timestampNanos)
+    }
+
+    @Test
+    fun ringOverwritesTheOldestSlot() {
+        offer(sharpness = 500f, timestampNanos = 1)
+        offer(sharpness = 200f, timestampNanos = 2)
+        offer(sharpness = 300f, timestampNanos = 3)
+        offer(sharpness = 150f, timestampNanos = 4)
+        assertEquals(3L, selector.copyBest(MAX_AGE_MS)!!.timestampNanos)
+    }
+
+    @Test
+    fun skipsFramesOlderThanMaxAge() {
+        offer(sharpness = 500f, timestampNanos = 1)
+        now += 600
+        offer(sharpness = 200f, timestampNanos = 2)
+        now += 600
+        assertEquals(2L, selector.copyBest(MAX_AGE_MS)!!.timestampNanos)
+        now += 600
+        assertFalse(selector.hasFrame(MAX_AGE_MS))
+    }
+
+    @Test
+    fun skipsFramesBeforeMinTimestamp() {
+        offer(sharpness = 500f, timestampNanos = 100)
+        offer(sharpness = 200f, timestampNanos = 200)
+        assertEquals(100L, selector.copyBest(MAX_AGE_MS, 100)!!.timestampNanos)
+        assertEquals(200L, selector.copyBest(MAX_AGE_MS, 150)!!.timestampNanos)
+        assertNull(selector.copyBest(MAX_AGE_MS, 201))
+    }
+
+    @Test
+    fun copyIsNotOverwrittenByLaterFrames() {
+        val first = YuvTestImage(32, 18, Layout.NV12, seed = 1)
+        selector.offer(FakeImageProxy(first), SHARP, BRIGHTNESS, CONTRAST)
+        val frame = selector.copyBest(MAX_AGE_MS)!!
+        repeat(3) {
+            val later = YuvTestImage(32, 18, Layout.NV12, seed = 2L + it)
+            selector.offer(FakeImageProxy(later), SHARP, BRIGHTNESS, CONTRAST)
+        }
+        assertArrayEquals(nv21(first), frame.data.copyOf(32 * 18 * 3 / 2))
+    }
+
+    @Test
+    fun clearDropsEveryFrame() {
+        offer(sharpness = 500f)
+        assertTrue(selector.hasFrame(MAX_AGE_MS))
+        selector.clear()
+        assertFalse(selector.hasFrame(MAX_AGE_MS))
+    }
+
+    @Test
+    fun rotatesNv21Clockwise() {
+        // 4 x 2 luma 0..7, two V/U pairs
+        val src = byteArrayOf(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11)
+        assertArrayEquals(src, rotate(src, 0))
+        assertArrayEquals(byteArrayOf(4, 0, 5, 1, 6, 2, 7, 3, 8, 9, 10, 11), rotate(src, 90))
+        assertArrayEquals(byteArrayOf(7, 6, 5, 4, 3, 2, 1, 0, 10, 11, 8, 9), rotate(src, 180))
+        assertArrayEquals(byteArrayOf(3, 7, 2, 6, 1, 5, 0, 4, 10, 11, 8, 9), rotate(src, 270))
+    }
+
+    @Test
+    fun fourQuarterTurnsRestoreTheFrame() {
+        val image = YuvTestImage(32, 18, Layout.NV21)
+        val src = nv21(image)
+        var data = src
+        var width = 32
+        var height = 18
+        repeat(4) {
+            val out = ByteArray(data.size)
+            BestFrameSelector.rotateNv21(data, width, height, 90, out)
+            data = out
+            width = height.also { height = width }
+        }
+        assertArrayEquals(src, data)
+    }
+
+    private fun rotate(src: ByteArray, rotation: Int): ByteArray {
+        val out = ByteArray(src.size)
+        BestFrameSelector.rotateNv21(src, 4, 2, rotation, out)
+        return out
+    }
+
+    private fun image() = YuvTestImage(32, 18, Layout.NV21)
+
+    private fun offer(sharpness: Float, timestampNanos: Long = 0L) {
+        selector.offer(FakeImageProxy(image(), timestampNanos = timestampNanos), sharpness, BRIGHTNESS, CONTRAST)
+    }
+
+    /**
+     * Reference NV21 packing of the samples in natural order
+     */
+    private fun nv21(image: YuvTestImage): ByteArray {
+        val ySize = image.width * image.height
+        val out = ByteArray(ySize * 3 / 2)
+        System.arraycopy(image.y, 0, out, 0, ySize)
+        for (i in image.v.indices) {
+            out[ySize + i * 2] = image.v[i]
+            out[ySize + i * 2 + 1] = image.u[i]
+        }
+        return out
+    }
+
+    companion object {
+        private const val MAX_AGE_MS = 1000L
+        private const val SHARP = 300f
+        private const val BRIGHTNESS = 120f
+        private const val CONTRAST = 40f
+    }
+}
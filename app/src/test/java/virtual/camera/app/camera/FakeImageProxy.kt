@@ -0,0 +1,82 @@
+package virtual.camera.app.camera
+
+import android.graphics.ImageFormat
+import android.graphics.Rect
+import android.media.Image
+import androidx.annotation.OptIn
+import androidx.camera.core.ExperimentalGetImage
+import androidx.camera.core.ImageInfo
+import androidx.camera.core.ImageProxy
+import androidx.camera.core.impl.TagBundle
+import androidx.camera.core.impl.utils.ExifData
+import java.nio.ByteBuffer
+
+/**
+ * YUV_420_888 [ImageProxy] over the planes of a [YuvTestImage], counting close calls;
+ * there is no media [Image] behind it
+ */
+@OptIn(ExperimentalGetImage::class)
+internal class FakeImageProxy(
+    private val source: YuvTestImage,
+    private val rotationDegrees: Int = 0,
+    private val timestampNanos: Long = 0L
+) : ImageProxy {
+
+    var closeCount = 0
+        private set
+
+    val isClosed: Boolean
+        get() = closeCount > 0
+
+    private var cropRect: Rect? = null
+
+    private val planes = arrayOf<ImageProxy.PlaneProxy>(
+        Plane(source.yBuffer, source.yRowStride, 1),
+        Plane(source.uBuffer, source.uvRowStride, source.uvPixelStride),
+        Plane(source.vBuffer, source.uvRowStride, source.uvPixelStride)
+    )
+
+    private val info = object : ImageInfo {
+        override fun getTagBundle(): TagBundle = TagBundle.emptyBundle()
+
+        override fun getTimestamp(): Long = timestampNanos
+
+        override fun getRotationDegrees(): Int = rotationDegrees
+
+        override fun populateExifData(exifBuilder: ExifData.Builder) {}
+    }
+
+    override fun close() {
+        closeCount++
+    }
+
+    override fun getCropRect(): Rect = cropRect ?: Rect()
+
+    override fun setCropRect(rect: Rect?) {
+        cropRect = rect
+    }
+
+    override fun getFormat(): Int = ImageFormat.YUV_420_888
+
+    override fun getHeight(): Int = source.height
+
+    override fun getWidth(): Int = source.width
+
+    override fun getPlanes(): Array<ImageProxy.PlaneProxy> = planes
+
+    override fun getImageInfo(): ImageInfo = info
+
+    override fun getImage(): Image? = null
+
+    private class Plane(
+        private val buffer: ByteBuffer,
+        private val rowStride: Int,
+        private val pixelStride: Int
+    ) : ImageProxy.PlaneProxy {
+        override fun getRowStride(): Int = rowStride
+
+        override fun getPixelStride(): Int = pixelStride
+
+        override fun getBuffer(): ByteBuffer = buffer
+    }
+}
@@ -0,0 +1,170 @@
+package virtual.camera.app.camera
+
+import androidx.camera.core.ImageAnalysis
+import androidx.camera.core.ImageProxy
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import virtual.camera.app.camera.YuvTestImage.Layout
+import java.util.concurrent.TimeUnit
+
+/**
+ * Reference counting, shared conversions and rate limiting of [FrameBus]
+ */
+class FrameBusTest {
+
+    private val bus = FrameBus()
+
+    @Test
+    fun frameClosedAfterTheLastConsumer() {
+        var delivered = 0
+        bus.register(FrameBus.Consumer { delivered++ })
+        bus.register(FrameBus.Consumer { delivered++ })
+        val image = image()
+        bus.analyze(image)
+        assertEquals(2, delivered)
+        assertEquals(1, image.closeCount)
+    }
+
+    @Test
+    fun frameWithoutConsumersIsClosed() {
+        val image = image()
+        bus.analyze(image)
+        assertEquals(1, image.closeCount)
+    }
+
+    @Test
+    fun retainedFrameStaysOpenUntilReleased() {
+        var retained: FrameBus.Frame? = null
+        bus.register(FrameBus.Consumer { retained = it.retain() })
+        val image = image()
+        bus.analyze(image)
+        assertFalse(image.isClosed)
+        retained!!.release()
+        assertEquals(1, image.closeCount)
+        try {
+            retained!!.release()
+            fail("released twice")
+        } catch (expected: IllegalStateException) {
+        }
+        try {
+            retained!!.retain()
+            fail("retained after close")
+        } catch (expected: IllegalStateException) {
+        }
+        assertEquals(1, image.closeCount)
+    }
+
+    @Test
+    fun conversionSharedAndRecycledOnClose() {
+        val conversion = CountingConversion()
+        val key = bus.registerConversion(conversion)
+        val values = ArrayList<Any>()
+        var retained: FrameBus.Frame? = null
+        bus.register(FrameBus.Consumer { values.add(it.get(key)) })
+        bus.register(FrameBus.Consumer {
+            values.add(it.get(key))
+            retained = it.retain()
+        })
+        bus.analyze(image())
+        assertEquals(1, conversion.converted)
+        assertSame(values[0], values[1])
+        assertTrue(conversion.recycled.isEmpty())
+
+        retained!!.release()
+        assertEquals(listOf(values[0]), conversion.recycled)
+        try {
+            retained!!.get(key)
+            fail("converted after close")
+        } catch (expected: IllegalStateException) {
+        }
+    }
+
+    @Test
+    fun unusedConversionIsNotComputed() {
+        val conversion = CountingConversion()
+        bus.registerConversion(conversion)
+        bus.register(FrameBus.Consumer { })
+        bus.analyze(image())
+        assertEquals(0, conversion.converted)
+        assertTrue(conversion.recycled.isEmpty())
+    }
+
+    @Test
+    fun analyzerClosingItsImageReleasesOneReference() {
+        val proxies = ArrayList<ImageProxy>()
+        bus.register(ImageAnalysis.Analyzer { proxies.add(it) })
+        bus.register(ImageAnalysis.Analyzer {
+            // closing twice must not release the other analyzer's reference
+            it.close()
+            it.close()
+        })
+        val image = image()
+        bus.analyze(image)
+        assertFalse(image.isClosed)
+        proxies[0].close()
+        assertEquals(1, image.closeCount)
+    }
+
+    @Test
+    fun consumersAreRateLimited() {
+        var limited = 0
+        var unlimited = 0
+        bus.register(FrameBus.Consumer { limited++ }, maxFps = 10f)
+        bus.register(FrameBus.Consumer { unlimited++ })
+        for (ms in longArrayOf(0, 50, 99, 100, 150, 199, 250, 260)) {
+            bus.analyze(image(TimeUnit.MILLISECONDS.toNanos(ms)))
+        }
+        // 0, 100 and 250 ms
+        assertEquals(3, limited)
+        assertEquals(8, unlimited)
+        assertEquals(listOf(3L to 5L, 8L to 0L), bus.getConsumerStats())
+    }
+
+    @Test
+    fun skippedFramesAreStillClosed() {
+        bus.register(FrameBus.Consumer { }, maxFps = 1f)
+        val images = (0L until 4L).map { image(TimeUnit.MILLISECONDS.toNanos(it * 10)) }
+        images.forEach { bus.analyze(it) }
+        images.forEach { assertEquals(1, it.closeCount) }
+    }
+
+    @Test
+    fun unregisterAndClear() {
+        val analyzer = ImageAnalysis.Analyzer { it.close() }
+        val consumer = FrameBus.Consumer { fail("unregistered consumer called") }
+        bus.register(analyzer)
+        bus.register(consumer)
+        assertEquals(listOf(analyzer), bus.analyzers())
+
+        bus.unregister(consumer)
+        bus.analyze(image())
+        assertEquals(listOf(1L to 0L), bus.getConsumerStats())
+
+        bus.clear()
+        assertTrue(bus.analyzers().isEmpty())
+        val image = image()
+        bus.analyze(image)
+        assertEquals(1, image.closeCount)
+    }
+
+    private fun image(timestampNanos: Long = 0L) =
+        FakeImageProxy(YuvTestImage(16, 8, Layout.NV21), timestampNanos = timestampNanos)
+
+    private class CountingConversion : FrameBus.Conversion<Any> {
+        var converted = 0
+        val recycled = ArrayList<Any>()
+
+        override fun convert(image: ImageProxy): Any {
+            converted++
+            return Any()
+        }
+
+        override fun recycle(value: Any) {
+            recycled.add(value)
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package virtual.camera.app.camera
+
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import virtual.camera.app.camera.YuvTestImage.Layout
+
+/**
+ * JVM timing of [LaplacianSharpness] on 640x480 and 1280x720 Y planes at every subsample
+ * step; prints milliseconds per frame. Numbers are for comparing changes on one machine,
+ * not a device estimate.
+ */
+class LaplacianSharpnessBenchmark {
+
+    @Test
+    fun sharpness() {
+        for ((width, height) in SIZES) {
+            val proxy = FakeImageProxy(YuvTestImage(width, height, Layout.NV21, rowPadding = 64))
+            for (subsample in intArrayOf(1, 2, 4)) {
+                val sharpness = LaplacianSharpness(subsample)
+                var sink = 0.0
+                repeat(WARMUP) { sink += sharpness.compute(proxy) }
+                val start = System.nanoTime()
+                repeat(ITERATIONS) { sink += sharpness.compute(proxy) }
+                val msPerFrame = (System.nanoTime() - start) / 1_000_000.0 / ITERATIONS
+                println("LaplacianSharpness ${width}x$height subsample $subsample: ${"%.3f".format(msPerFrame)} ms/frame")
+                assertTrue(sink > 0)
+            }
+        }
+    }
+
+    companion object {
+        private const val WARMUP = 20
+        private const val ITERATIONS = 50
+        private val SIZES = listOf(640 to 480, 1280 to 720)
+    }
+}
@@ -0,0 +1,119 @@
+package virtual.camera.app.camera
+
+import android.graphics.Rect
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.nio.ByteBuffer
+
+/**
+ * Golden values of [LaplacianSharpness] on small synthetic Y planes, worked out by hand from
+ * the kernel [0 1 0; 1 -4 1; 0 1 0] over the interior pixels
+ */
+class LaplacianSharpnessTest {
+
+    @Test
+    fun flatImageHasNoSharpness() {
+        assertEquals(0.0, compute(plane(10, 6) { _, _ -> 7 }), DELTA)
+    }
+
+    @Test
+    fun verticalStripes() {
+        // every response is +-2 * 100, half of each
+        assertEquals(40000.0, compute(plane(10, 6) { x, _ -> 100 * (x % 2) }), DELTA)
+    }
+
+    @Test
+    fun checkerboard() {
+        // every response is +-4 * 100, half of each
+        assertEquals(160000.0, compute(plane(10, 6) { x, y -> 100 * ((x + y) % 2) }), DELTA)
+    }
+
+    @Test
+    fun impulse() {
+        // -4 * 255 at the impulse, 255 at its four neighbours, zero mean over 8 x 6 responses
+        assertEquals(IMPULSE_VARIANCE, compute(impulse()), DELTA)
+    }
+
+    @Test
+    fun stridesDoNotChangeTheResult() {
+        assertEquals(IMPULSE_VARIANCE, compute(impulse(pixelStride = 2, rowPadding = 5)), DELTA)
+    }
+
+    @Test
+    fun regionOfInterest() {
+        // 6 x 6 region, the impulse and its neighbours among its 4 x 4 interior responses
+        assertEquals(1300500.0 / 16, compute(impulse(), roi(2, 1, 8, 7)), DELTA)
+        // impulse outside of the region
+        assertEquals(0.0, compute(impulse(), roi(6, 0, 10, 8)), DELTA)
+    }
+
+    @Test
+    fun subsampling() {
+        // 2 pixel wide stripes sampled every other pixel alternate like 1 pixel stripes
+        val stripes = plane(20, 12) { x, _ -> 100 * ((x / 2) % 2) }
+        assertEquals(40000.0, compute(stripes, subsample = 2), DELTA)
+        // a checkerboard sampled every other pixel is flat
+        val checkerboard = plane(20, 12) { x, y -> 100 * ((x + y) % 2) }
+        assertEquals(0.0, compute(checkerboard, subsample = 2), DELTA)
+    }
+
+    @Test
+    fun tooSmallForTheKernel() {
+        assertEquals(0.0, compute(plane(2, 10) { x, _ -> 100 * x }), DELTA)
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun rejectsUnsupportedSubsample() {
+        LaplacianSharpness().subsample = 3
+    }
+
+    private class Plane(
+        val buffer: ByteBuffer,
+        val width: Int,
+        val height: Int,
+        val rowStride: Int,
+        val pixelStride: Int
+    )
+
+    private fun plane(
+        width: Int,
+        height: Int,
+        pixelStride: Int = 1,
+        rowPadding: Int = 0,
+        luma: (Int, Int) -> Int
+    ): Plane {
+        val rowStride = (width - 1) * pixelStride + 1 + rowPadding
+        // filler between samples, read by mistake it shows up as a large response
+        val data = ByteArray((height - 1) * rowStride + (width - 1) * pixelStride + 1) { 0xEE.toByte() }
+        for (y in 0 until height) {
+            for (x in 0 until width) {
+                data[y * rowStride + x * pixelStride] = luma(x, y).toByte()
+            }
+        }
+        return Plane(ByteBuffer.wrap(data), width, height, rowStride, pixelStride)
+    }
+
+    private fun impulse(pixelStride: Int = 1, rowPadding: Int = 0) =
+        plane(10, 8, pixelStride, rowPadding) { x, y -> if (x == 4 && y == 3) 255 else 0 }
+
+    private fun roi(left: Int, top: Int, right: Int, bottom: Int) = Rect().apply {
+        // field access only, the unit test android.jar has no method bodies
+        this.left = left
+        this.top = top
+        this.right = right
+        this.bottom = bottom
+    }
+
+    private fun compute(plane: Plane, roi: Rect? = null, subsample: Int = 1): Double {
+        return LaplacianSharpness(subsample).compute(
+            plane.buffer, plane.width, plane.height, plane.rowStride, plane.pixelStride, roi
+        )
+    }
+
+    companion object {
+        private const val DELTA = 1e-9
+
+        // (1020^2 + 4 * 255^2) / 48
+        private const val IMPULSE_VARIANCE = 27093.75
+    }
+}
@@ -0,0 +1,52 @@
+package virtual.camera.app.camera
+
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import virtual.camera.app.camera.YuvTestImage.Layout
+
+/**
+ * JVM timing of [LumaStats] against the removed copy-and-walk-four-times metrics
+ * ([LumaStatsTest.TwoPass]) on 640x480 and 1280x720 Y planes; prints milliseconds per frame.
+ * Numbers are for comparing changes on one machine, not a device estimate.
+ */
+class LumaStatsBenchmark {
+
+    @Test
+    fun lumaStats() {
+        for ((width, height) in SIZES) {
+            val image = YuvTestImage(width, height, Layout.NV21, rowPadding = 64)
+            val proxy = FakeImageProxy(image)
+            val stats = LumaStats()
+            var sink = 0.0
+            repeat(WARMUP) { sink += stats.compute(proxy).stdDev }
+            val start = System.nanoTime()
+            repeat(ITERATIONS) { sink += stats.compute(proxy).stdDev }
+            report("LumaStats", width, height, start)
+
+            repeat(WARMUP) { sink += twoPass(image) }
+            val twoPassStart = System.nanoTime()
+            repeat(ITERATIONS) { sink += twoPass(image) }
+            report("two pass", width, height, twoPassStart)
+            assertTrue(sink > 0)
+        }
+    }
+
+    private fun twoPass(image: YuvTestImage): Double {
+        val buffer = image.yBuffer.duplicate()
+        val data = ByteArray(buffer.remaining())
+        buffer.get(data)
+        return (LumaStatsTest.TwoPass.blurScore(data) + LumaStatsTest.TwoPass.brightness(data) +
+                LumaStatsTest.TwoPass.contrast(data)).toDouble()
+    }
+
+    private fun report(name: String, width: Int, height: Int, start: Long) {
+        val msPerFrame = (System.nanoTime() - start) / 1_000_000.0 / ITERATIONS
+        println("$name ${width}x$height: ${"%.3f".format(msPerFrame)} ms/frame")
+    }
+
+    companion object {
+        private const val WARMUP = 20
+        private const val ITERATIONS = 50
+        private val SIZES = listOf(640 to 480, 1280 to 720)
+    }
+}
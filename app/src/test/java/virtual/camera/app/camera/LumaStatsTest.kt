@@ -0,0 +1,111 @@
+package virtual.camera.app.camera
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import virtual.camera.app.camera.YuvTestImage.Layout
+import java.nio.ByteBuffer
+import kotlin.math.sqrt
+
+/**
+ * [LumaStats] against the two-pass mean/standard deviation that ImageQualityAnalyzer computed
+ * on a copy of the Y plane before it; the old code counted row padding as pixels, so padded
+ * planes are compared with the two-pass result over the samples alone
+ */
+class LumaStatsTest {
+
+    @Test
+    fun matchesTwoPassOnPackedPlane() {
+        val image = YuvTestImage(64, 48, Layout.NV21)
+        val stats = LumaStats().compute(FakeImageProxy(image))
+        val data = ByteArray(image.yBuffer.remaining())
+        image.yBuffer.duplicate().get(data)
+        assertEquals(data.size.toLong(), stats.count)
+        assertEquals(TwoPass.brightness(data).toDouble(), stats.mean, 1e-3)
+        assertEquals(TwoPass.contrast(data).toDouble(), stats.stdDev, 1e-3)
+        assertEquals(TwoPass.blurScore(data).toDouble(), stats.stdDev, 1e-3)
+    }
+
+    @Test
+    fun paddingIsNotCounted() {
+        val image = YuvTestImage(64, 48, Layout.I420, rowPadding = 16)
+        val stats = LumaStats().compute(FakeImageProxy(image))
+        assertEquals(64L * 48, stats.count)
+        assertEquals(TwoPass.brightness(image.y).toDouble(), stats.mean, 1e-3)
+        assertEquals(TwoPass.contrast(image.y).toDouble(), stats.stdDev, 1e-3)
+        assertEquals(0, image.yBuffer.position())
+    }
+
+    @Test
+    fun interleavedSamples() {
+        // every other byte is a sample, the bytes between them are constant filler
+        val samples = ByteArray(40 * 30) { (it * 7).toByte() }
+        val data = ByteArray(samples.size * 2) { 0x55 }
+        for (i in samples.indices) data[i * 2] = samples[i]
+        val stats = LumaStats().compute(ByteBuffer.wrap(data), 40, 30, 80, 2)
+        assertEquals(TwoPass.brightness(samples).toDouble(), stats.mean, 1e-3)
+        assertEquals(TwoPass.contrast(samples).toDouble(), stats.stdDev, 1e-3)
+    }
+
+    @Test
+    fun regionMinMaxAndHistogram() {
+        val image = YuvTestImage(20, 10, Layout.NV12, rowPadding = 3) { x, y -> x + 10 * y }
+        val stats = LumaStats().compute(image.yBuffer, 20, 10, image.yRowStride, 1, 2, 3, 6, 5)
+        // rows 3..4, columns 2..5
+        assertEquals(8L, stats.count)
+        assertEquals(32, stats.min)
+        assertEquals(45, stats.max)
+        assertEquals(38.5, stats.mean, 1e-9)
+        assertEquals(1, stats.histogram()[32])
+        assertEquals(0, stats.histogram()[31])
+    }
+
+    @Test
+    fun emptyRegion() {
+        val stats = LumaStats().compute(ByteBuffer.allocate(16), 4, 4, 4, 1, 2, 0, 2, 4)
+        assertEquals(0L, stats.count)
+        assertEquals(0.0, stats.mean, 0.0)
+        assertEquals(0.0, stats.variance, 0.0)
+    }
+
+    /**
+     * The removed ImageQualityAnalyzer metrics, verbatim
+     */
+    internal object TwoPass {
+        fun blurScore(data: ByteArray): Float {
+            if (data.isEmpty()) return 0f
+            var variance = 0.0
+            var mean = 0.0
+            for (byte in data) {
+                mean += (byte.toInt() and 0xFF)
+            }
+            mean /= data.size
+            for (byte in data) {
+                val diff = (byte.toInt() and 0xFF) - mean
+                variance += diff * diff
+            }
+            variance /= data.size
+            return sqrt(variance).toFloat()
+        }
+
+        fun brightness(data: ByteArray): Float {
+            if (data.isEmpty()) return 0f
+            var sum = 0L
+            for (byte in data) {
+                sum += (byte.toInt() and 0xFF)
+            }
+            return (sum.toFloat() / data.size)
+        }
+
+        fun contrast(data: ByteArray): Float {
+            if (data.isEmpty()) return 0f
+            val brightness = brightness(data)
+            var variance = 0.0
+            for (byte in data) {
+                val diff = (byte.toInt() and 0xFF) - brightness
+                variance += diff * diff
+            }
+            variance /= data.size
+            return sqrt(variance).toFloat()
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package virtual.camera.app.camera
+
+import android.graphics.Rect
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.util.Random
+
+/**
+ * [TiledFrameAnalysis] against the serial kernels, [LumaStats] for the luma and
+ * [LaplacianSharpness] for the Laplacian variance, on random planes split into stripes
+ */
+class TiledFrameAnalysisTest {
+
+    private val analysis = TiledFrameAnalysis(3)
+
+    @After
+    fun close() {
+        analysis.close()
+    }
+
+    @Test
+    fun packedPlane() {
+        assertMatchesSerial(plane(160, 203), stripes = 7)
+    }
+
+    @Test
+    fun interleavedPaddedPlane() {
+        assertMatchesSerial(plane(160, 203, pixelStride = 2, rowPadding = 24), stripes = 5)
+    }
+
+    @Test
+    fun regionOfInterest() {
+        val plane = plane(160, 203, pixelStride = 2, rowPadding = 8)
+        assertMatchesSerial(plane, roi(13, 21, 149, 198), stripes = 3)
+        assertMatchesSerial(plane(160, 203), roi(0, 5, 97, 203), stripes = 9)
+    }
+
+    @Test
+    fun stripeCountDoesNotChangeTheResult() {
+        val plane = plane(96, 151, pixelStride = 2)
+        for (stripes in intArrayOf(1, 2, 3, 5, 7, 11, 64)) {
+            assertMatchesSerial(plane, stripes = stripes)
+        }
+    }
+
+    @Test
+    fun shortRegionHasNoLaplacian() {
+        val result = analysis.compute(plane(40, 40).buffer, 40, 40, 40, 1, top = 10, bottom = 12)
+        assertEquals(80L, result.luma.count)
+        assertEquals(0L, result.laplacian.count)
+    }
+
+    @Test
+    fun emptyRegion() {
+        val result = analysis.compute(plane(40, 40).buffer, 40, 40, 40, 1, left = 20, right = 20)
+        assertEquals(0L, result.luma.count)
+        assertEquals(0.0, result.luma.variance, 0.0)
+    }
+
+    private class Plane(
+        val buffer: ByteBuffer,
+        val width: Int,
+        val height: Int,
+        val rowStride: Int,
+        val pixelStride: Int
+    )
+
+    private fun plane(width: Int, height: Int, pixelStride: Int = 1, rowPadding: Int = 0): Plane {
+        val rowStride = (width - 1) * pixelStride + 1 + rowPadding
+        val data = ByteArray((height - 1) * rowStride + (width - 1) * pixelStride + 1)
+        Random(width * 31L + height).nextBytes(data)
+        // starts past a header, the kernels read from the buffer position
+        val buffer = ByteBuffer.allocate(data.size + HEADER)
+        buffer.position(HEADER)
+        buffer.put(data)
+        buffer.position(HEADER)
+        return Plane(buffer, width, height, rowStride, pixelStride)
+    }
+
+    private fun roi(left: Int, top: Int, right: Int, bottom: Int) = Rect().apply {
+        // field access only, the unit test android.jar has no method bodies
+        this.left = left
+        this.top = top
+        this.right = right
+        this.bottom = bottom
+    }
+
+    private fun assertMatchesSerial(plane: Plane, roi: Rect? = null, stripes: Int) {
+        val left = roi?.left ?: 0
+        val top = roi?.top ?: 0
+        val right = roi?.right ?: plane.width
+        val bottom = roi?.bottom ?: plane.height
+        val result = analysis.compute(
+            plane.buffer, plane.width, plane.height, plane.rowStride, plane.pixelStride,
+            left, top, right, bottom, stripes
+        )
+        val luma = LumaStats().compute(
+            plane.buffer, plane.width, plane.height, plane.rowStride, plane.pixelStride,
+            left, top, right, bottom
+        )
+        val sharpness = LaplacianSharpness().compute(
+            plane.buffer, plane.width, plane.height, plane.rowStride, plane.pixelStride, roi
+        )
+        val message = "stripes $stripes"
+        assertEquals(message, HEADER, plane.buffer.position())
+        assertEquals(message, luma.count, result.luma.count)
+        assertEquals(message, luma.mean, result.luma.mean, 1e-9)
+        assertEquals(message, luma.variance, result.luma.variance, luma.variance * 1e-9)
+        assertEquals(message, luma.min, result.luma.min)
+        assertEquals(message, luma.max, result.luma.max)
+        assertEquals(message, (right - left - 2).toLong() * (bottom - top - 2), result.laplacian.count)
+        assertEquals(message, sharpness, result.laplacian.variance, sharpness * 1e-9)
+    }
+
+    companion object {
+        private const val HEADER = 7
+    }
+}
@@ -0,0 +1,109 @@
+package virtual.camera.app.camera
+
+import java.nio.ByteBuffer
+import java.util.Random
+
+/**
+ * Random YUV 4:2:0 test image with its planes laid out the way camera HALs deliver them:
+ * planar (I420) or semi-planar with the two chroma planes sharing one buffer (NV12, NV21),
+ * rows optionally padded. Buffers end right after the last sample, as on devices, so a
+ * kernel reading past its region fails. Luma is random unless [luma] gives it per pixel.
+ */
+internal class YuvTestImage(
+    val width: Int,
+    val height: Int,
+    val layout: Layout,
+    rowPadding: Int = 0,
+    seed: Long = 1L,
+    luma: ((Int, Int) -> Int)? = null
+) {
+
+    enum class Layout { I420, NV12, NV21 }
+
+    val chromaWidth = (width + 1) / 2
+    val chromaHeight = (height + 1) / 2
+
+    // samples in natural order, for the reference
+    val y = ByteArray(width * height)
+    val u = ByteArray(chromaWidth * chromaHeight)
+    val v = ByteArray(chromaWidth * chromaHeight)
+
+    val yRowStride = width + rowPadding
+    val uvPixelStride = if (layout == Layout.I420) 1 else 2
+    val uvRowStride = chromaWidth * uvPixelStride + rowPadding
+
+    val yBuffer: ByteBuffer
+    val uBuffer: ByteBuffer
+    val vBuffer: ByteBuffer
+
+    init {
+        val random = Random(seed)
+        random.nextBytes(y)
+        random.nextBytes(u)
+        random.nextBytes(v)
+        if (luma != null) {
+            for (row in 0 until height) {
+                for (col in 0 until width) {
+                    y[row * width + col] = luma(col, row).toByte()
+                }
+            }
+        }
+
+        val yData = ByteArray((height - 1) * yRowStride + width) { PADDING }
+        for (row in 0 until height) {
+            System.arraycopy(y, row * width, yData, row * yRowStride, width)
+        }
+        yBuffer = ByteBuffer.wrap(yData).slice()
+
+        if (layout == Layout.I420) {
+            uBuffer = ByteBuffer.wrap(planar(u)).slice()
+            vBuffer = ByteBuffer.wrap(planar(v)).slice()
+        } else {
+            // the second plane starts one byte in and both end at the last chroma sample
+            val size = (chromaHeight - 1) * uvRowStride + chromaWidth * 2
+            val data = ByteArray(size) { PADDING }
+            val first = if (layout == Layout.NV12) u else v
+            val second = if (layout == Layout.NV12) v else u
+            for (row in 0 until chromaHeight) {
+                for (col in 0 until chromaWidth) {
+                    data[row * uvRowStride + col * 2] = first[row * chromaWidth + col]
+                    data[row * uvRowStride + col * 2 + 1] = second[row * chromaWidth + col]
+                }
+            }
+            val firstBuffer = ByteBuffer.wrap(data, 0, size - 1).slice()
+            // not sliced: the plane starts at the buffer position rather than at 0
+            val secondBuffer = ByteBuffer.wrap(data, 1, size - 1)
+            uBuffer = if (layout == Layout.NV12) firstBuffer else secondBuffer
+            vBuffer = if (layout == Layout.NV12) secondBuffer else firstBuffer
+        }
+    }
+
+    private fun planar(samples: ByteArray): ByteArray {
+        val data = ByteArray((chromaHeight - 1) * uvRowStride + chromaWidth) { PADDING }
+        for (row in 0 until chromaHeight) {
+            System.arraycopy(samples, row * chromaWidth, data, row * uvRowStride, chromaWidth)
+        }
+        return data
+    }
+
+    fun convert(
+        converter: YuvToRgbConverter,
+        left: Int,
+        top: Int,
+        outWidth: Int,
+        outHeight: Int,
+        step: Int,
+        out: IntArray
+    ) {
+        converter.convert(
+            yBuffer, yRowStride, 1,
+            uBuffer, vBuffer, uvRowStride, uvPixelStride,
+            left, top, outWidth, outHeight, step, out
+        )
+    }
+
+    companion object {
+        // fills the row padding, a sample read from it shows up as a large error
+        private const val PADDING = 0xEE.toByte()
+    }
+}
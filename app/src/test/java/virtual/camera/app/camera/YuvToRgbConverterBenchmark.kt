@@ -0,0 +1,35 @@
+package virtual.camera.app.camera
+
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import virtual.camera.app.camera.YuvTestImage.Layout
+
+/**
+ * JVM timing of the [YuvToRgbConverter] kernel on a 640x480 NV21 frame, full size and
+ * downscaled; prints milliseconds per frame. Numbers are for comparing changes on one
+ * machine, not a device estimate.
+ */
+class YuvToRgbConverterBenchmark {
+
+    @Test
+    fun convert640x480() {
+        val image = YuvTestImage(640, 480, Layout.NV21, rowPadding = 64)
+        val converter = YuvToRgbConverter()
+        val out = IntArray(640 * 480)
+        for (step in intArrayOf(1, 2, 4)) {
+            val width = (640 + step - 1) / step
+            val height = (480 + step - 1) / step
+            repeat(WARMUP) { image.convert(converter, 0, 0, width, height, step, out) }
+            val start = System.nanoTime()
+            repeat(ITERATIONS) { image.convert(converter, 0, 0, width, height, step, out) }
+            val msPerFrame = (System.nanoTime() - start) / 1_000_000.0 / ITERATIONS
+            println("YuvToRgbConverter 640x480 NV21 step $step: ${"%.3f".format(msPerFrame)} ms/frame")
+            assertTrue(out[0] ushr 24 == 0xFF)
+        }
+    }
+
+    companion object {
+        private const val WARMUP = 20
+        private const val ITERATIONS = 50
+    }
+}
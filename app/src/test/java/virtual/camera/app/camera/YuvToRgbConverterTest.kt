@@ -0,0 +1,112 @@
+package virtual.camera.app.camera
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.fail
+import org.junit.Test
+import virtual.camera.app.camera.YuvTestImage.Layout
+import kotlin.math.abs
+import kotlin.math.roundToInt
+
+/**
+ * Buffer kernel of [YuvToRgbConverter] against a floating point full range BT.601 reference,
+ * for every plane layout, with padded rows, regions and downscaling
+ */
+class YuvToRgbConverterTest {
+
+    private val converter = YuvToRgbConverter()
+
+    @Test
+    fun fullFrameMatchesReference() {
+        for (layout in Layout.values()) {
+            for (padding in intArrayOf(0, 8)) {
+                val image = YuvTestImage(64, 48, layout, padding, seed = 3L)
+                check(image, 0, 0, 64, 48, 1)
+            }
+        }
+    }
+
+    @Test
+    fun regionWithOddOriginMatchesReference() {
+        for (layout in Layout.values()) {
+            val image = YuvTestImage(40, 30, layout, rowPadding = 6, seed = 5L)
+            // odd left/top start halfway into a chroma sample
+            check(image, 3, 5, 21, 13, 1)
+        }
+    }
+
+    @Test
+    fun regionAtBottomRightEdgeMatchesReference() {
+        for (layout in Layout.values()) {
+            val image = YuvTestImage(40, 30, layout, rowPadding = 4, seed = 7L)
+            check(image, 25, 17, 15, 13, 1)
+            check(image, 39, 29, 1, 1, 1)
+        }
+    }
+
+    @Test
+    fun downscaleMatchesReference() {
+        for (layout in Layout.values()) {
+            val image = YuvTestImage(46, 34, layout, rowPadding = 2, seed = 11L)
+            // 16 x 12 samples, the last ones on the last column and row
+            check(image, 0, 0, 16, 12, 3)
+            check(image, 1, 1, 11, 8, 4)
+        }
+    }
+
+    @Test
+    fun bufferPositionsAreRestored() {
+        val image = YuvTestImage(32, 16, Layout.NV21, rowPadding = 4)
+        val positions = listOf(image.yBuffer, image.uBuffer, image.vBuffer).map { it.position() }
+        image.convert(converter, 1, 1, 15, 7, 2, IntArray(15 * 7))
+        assertEquals(positions, listOf(image.yBuffer, image.uBuffer, image.vBuffer).map { it.position() })
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun rejectsShortOutput() {
+        val image = YuvTestImage(16, 16, Layout.I420)
+        image.convert(converter, 0, 0, 16, 16, 1, IntArray(16 * 16 - 1))
+    }
+
+    private fun check(image: YuvTestImage, left: Int, top: Int, width: Int, height: Int, step: Int) {
+        val out = IntArray(width * height)
+        image.convert(converter, left, top, width, height, step, out)
+        for (j in 0 until height) {
+            for (i in 0 until width) {
+                val sx = left + i * step
+                val sy = top + j * step
+                val expected = reference(image, sx, sy)
+                val actual = out[j * width + i]
+                if (actual ushr 24 != 0xFF || maxChannelError(expected, actual) > TOLERANCE) {
+                    fail("${image.layout} ($sx, $sy) step $step: expected " +
+                            Integer.toHexString(expected) + " got " + Integer.toHexString(actual))
+                }
+            }
+        }
+    }
+
+    private fun reference(image: YuvTestImage, x: Int, y: Int): Int {
+        val luma = (image.y[y * image.width + x].toInt() and 0xFF).toDouble()
+        val c = (y / 2) * image.chromaWidth + x / 2
+        val u = (image.u[c].toInt() and 0xFF) - 128.0
+        val v = (image.v[c].toInt() and 0xFF) - 128.0
+        val r = clamp((luma + 1.402 * v).roundToInt())
+        val g = clamp((luma - 0.344136 * u - 0.714136 * v).roundToInt())
+        val b = clamp((luma + 1.772 * u).roundToInt())
+        return (0xFF shl 24) or (r shl 16) or (g shl 8) or b
+    }
+
+    private fun maxChannelError(expected: Int, actual: Int): Int {
+        var error = 0
+        for (shift in intArrayOf(0, 8, 16)) {
+            error = maxOf(error, abs((expected shr shift and 0xFF) - (actual shr shift and 0xFF)))
+        }
+        return error
+    }
+
+    private fun clamp(value: Int): Int = value.coerceIn(0, 255)
+
+    companion object {
+        // 10 bit fixed point coefficients and truncation stay within one level
+        private const val TOLERANCE = 1
+    }
+}
@@ -0,0 +1,249 @@
+package virtual.camera.app.ml
+
+import android.graphics.Rect
+import androidx.camera.core.ImageProxy
+import com.google.mlkit.vision.face.Face
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import virtual.camera.app.camera.FakeImageProxy
+import virtual.camera.app.camera.YuvTestImage
+import virtual.camera.app.camera.YuvTestImage.Layout
+import java.util.concurrent.Executor
+
+/**
+ * Signature sampling and keyframe/reuse decisions of [HybridFaceTracker]; detections are
+ * completed by hand with no faces, which is a reusable result
+ */
+class HybridFaceTrackerTest {
+
+    private val detector = FakeDetector()
+    private val recorder = Recorder()
+
+    @Test
+    fun signatureFollowsRotation() {
+        // bright block in the top left corner of the sensor image
+        val image = YuvTestImage(64, 32, Layout.NV21) { x, y -> if (x < 8 && y < 8) BRIGHT else DARK }
+        val last = HybridFaceTracker.SIGNATURE_SIZE - 1
+        // where the block ends up in the upright frame
+        val corners = mapOf(0 to (0 to 0), 90 to (last to 0), 180 to (last to last), 270 to (0 to last))
+        for ((rotation, corner) in corners) {
+            val tracker = tracker()
+            tracker.computeSignature(FakeImageProxy(image, rotation))
+            for (x in intArrayOf(0, last)) {
+                for (y in intArrayOf(0, last)) {
+                    val expected = if (corner == (x to y)) BRIGHT else DARK
+                    assertEquals("rotation $rotation cell ($x, $y)", expected, tracker.signatureAt(x, y))
+                }
+            }
+        }
+    }
+
+    @Test
+    fun signatureHonorsStrides() {
+        val image = YuvTestImage(64, 48, Layout.I420, rowPadding = 12) { x, _ -> x * 4 }
+        val tracker = tracker()
+        tracker.computeSignature(FakeImageProxy(image))
+        // cell centres at x = 2, 6, 10, ...
+        assertEquals(8, tracker.signatureAt(0, 5))
+        assertEquals(248, tracker.signatureAt(15, 5))
+    }
+
+    @Test
+    fun meanDifferenceOverFrameAndBounds() {
+        val tracker = tracker()
+        tracker.computeSignature(FakeImageProxy(YuvTestImage(64, 64, Layout.NV12) { _, _ -> 100 }))
+        tracker.markKeyframeSignature()
+        assertEquals(0, tracker.meanDifference(null))
+
+        // 16 x 16 pixels brighter by 80, 4 x 4 of the 16 x 16 cells
+        val changed = YuvTestImage(64, 64, Layout.NV12) { x, y -> if (x < 16 && y < 16) 180 else 100 }
+        tracker.computeSignature(FakeImageProxy(changed))
+        assertEquals(80 * 16 / 256, tracker.meanDifference(null))
+        assertEquals(80, tracker.meanDifference(rect(0, 0, 16, 16)))
+        assertEquals(0, tracker.meanDifference(rect(32, 32, 64, 64)))
+    }
+
+    @Test
+    fun stillFramesReuseTheKeyframe() {
+        val tracker = tracker()
+        assertTrue(tracker.process(frame(), recorder))
+        assertEquals(1, detector.detections)
+        detector.complete()
+        assertEquals(1, recorder.detected)
+
+        val reused = frame()
+        assertTrue(tracker.process(reused, recorder))
+        assertTrue(reused.isClosed)
+        assertEquals(1, detector.detections)
+        assertEquals(1, recorder.reused)
+    }
+
+    @Test
+    fun framesWhileKeyframePendingAreDropped() {
+        val tracker = tracker()
+        tracker.process(frame(), recorder)
+        val dropped = frame()
+        assertFalse(tracker.process(dropped, recorder))
+        assertTrue(dropped.isClosed)
+        assertEquals(1, detector.detections)
+        assertEquals(1L, tracker.getDroppedCount())
+
+        // the pending keyframe still completes and is reused afterwards
+        detector.complete()
+        tracker.process(frame(), recorder)
+        assertEquals(1, recorder.reused)
+    }
+
+    @Test
+    fun driftForcesKeyframe() {
+        val tracker = tracker()
+        tracker.process(frame(), recorder)
+        detector.complete()
+        tracker.process(frame(luma = 100 + 20), recorder)
+        assertEquals(2, detector.detections)
+        assertEquals(0, recorder.reused)
+    }
+
+    @Test
+    fun keyframeIntervalIsEnforced() {
+        val tracker = tracker(maxKeyframeInterval = 3)
+        tracker.process(frame(), recorder)
+        detector.complete()
+        repeat(3) { tracker.process(frame(), recorder) }
+        assertEquals(3, recorder.reused)
+        assertEquals(1, detector.detections)
+        tracker.process(frame(), recorder)
+        assertEquals(2, detector.detections)
+    }
+
+    @Test
+    fun requestedKeyframeRunsOnTheNextFrame() {
+        val tracker = tracker()
+        tracker.process(frame(), recorder)
+        detector.complete()
+        tracker.requestKeyframe()
+        tracker.process(frame(), recorder)
+        assertEquals(2, detector.detections)
+        detector.complete()
+        tracker.process(frame(), recorder)
+        assertEquals(1, recorder.reused)
+    }
+
+    @Test
+    fun resultInvalidatedWhilePendingIsNotReused() {
+        val tracker = tracker()
+        tracker.process(frame(), recorder)
+        tracker.invalidate()
+        detector.complete()
+        // still delivered, but the next frame is measured again
+        assertEquals(1, recorder.detected)
+        tracker.process(frame(), recorder)
+        assertEquals(2, detector.detections)
+    }
+
+    @Test
+    fun failedKeyframeIsNotReused() {
+        val tracker = tracker()
+        tracker.process(frame(), recorder)
+        detector.fail()
+        assertEquals(1, recorder.failed)
+        tracker.process(frame(), recorder)
+        assertEquals(2, detector.detections)
+    }
+
+    @Test
+    fun plainCallbackGetsReusedResultsAsDetections() {
+        val tracker = tracker()
+        val plain = Recorder()
+        val callback = object : FaceDetectionManager.FaceDetectionCallback {
+            override fun onFacesDetected(faces: List<Face>, validationResult: FaceDetectionManager.FaceValidationResult) {
+                plain.onFacesDetected(faces, validationResult)
+            }
+
+            override fun onDetectionFailed(error: Exception) {
+                plain.onDetectionFailed(error)
+            }
+        }
+        tracker.process(frame(), callback)
+        detector.complete()
+        tracker.process(frame(), callback)
+        assertEquals(2, plain.detected)
+        assertEquals(0, plain.reused)
+    }
+
+    private fun tracker(maxKeyframeInterval: Int = HybridFaceTracker.DEFAULT_KEYFRAME_INTERVAL) =
+        HybridFaceTracker(detector, maxKeyframeInterval, Executor { it.run() })
+
+    private fun frame(luma: Int = 100) = FakeImageProxy(YuvTestImage(64, 48, Layout.NV21) { _, _ -> luma })
+
+    private fun rect(left: Int, top: Int, right: Int, bottom: Int) = Rect().apply {
+        // field access only, the unit test android.jar has no method bodies
+        this.left = left
+        this.top = top
+        this.right = right
+        this.bottom = bottom
+    }
+
+    private class FakeDetector : FaceDetectionManager() {
+        private val pending = ArrayDeque<FaceDetectionManager.FaceDetectionCallback>()
+        var detections = 0
+
+        override fun detectFaces(
+            imageProxy: ImageProxy,
+            fast: Boolean,
+            callback: FaceDetectionManager.FaceDetectionCallback
+        ): Boolean {
+            detections++
+            pending.addLast(callback)
+            imageProxy.close()
+            return true
+        }
+
+        fun complete() {
+            pending.removeFirst().onFacesDetected(emptyList(), NO_FACE)
+        }
+
+        fun fail() {
+            pending.removeFirst().onDetectionFailed(IllegalStateException("detector closed"))
+        }
+    }
+
+    private class Recorder : HybridFaceTracker.Callback {
+        var detected = 0
+        var reused = 0
+        var failed = 0
+
+        override fun onFacesDetected(faces: List<Face>, validationResult: FaceDetectionManager.FaceValidationResult) {
+            detected++
+        }
+
+        override fun onFacesReused(faces: List<Face>, validationResult: FaceDetectionManager.FaceValidationResult) {
+            reused++
+        }
+
+        override fun onDetectionFailed(error: Exception) {
+            failed++
+        }
+    }
+
+    companion object {
+        private const val BRIGHT = 200
+        private const val DARK = 20
+
+        private val NO_FACE = FaceDetectionManager.FaceValidationResult(
+            isValid = false,
+            faceCount = 0,
+            isFrontal = false,
+            hasOpenEyes = false,
+            isSmiling = false,
+            headEulerAngleY = 0f,
+            headEulerAngleZ = 0f,
+            leftEyeOpenProbability = 0f,
+            rightEyeOpenProbability = 0f,
+            smilingProbability = 0f,
+            boundingBox = null
+        )
+    }
+}
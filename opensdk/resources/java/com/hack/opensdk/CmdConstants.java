@@ -28,6 +28,9 @@ public class CmdConstants {
     public static final int CMD_GET_PKG_SETTINGS = 25;
     public static final int CMD_GET_LAUNCHER_INTENT = 26;
     public static final int CMD_GET_UNAVAILABLE_PKGS = 27;
+    // args: userId, List<String> packageNames, flags; returns List<PackageInfo> in the same order, null if not installed.
+    // only sent to engines that set RUNTIME_PROPERTIES_BATCH_PACKAGE_INFO, the prebuilt engine doesn't implement it yet
+    public static final int CMD_GET_PACKAGE_INFOS = 28;
 
     public static final int CMD_START_PACKAGE = 30;
     public static final int CMD_START_ACTIVITY = 31;
@@ -74,6 +77,11 @@ public class CmdConstants {
     public static final String TRANSACT_PROVIDER_AUTHORITY = "com.hack.server.core.TransactProvider";
     public static final String TRANSACT_PROVIDER_METHOD = "transact";
     public static final String TRANSACT_KEY_CMD = "transact_cmd";
+    // ArrayList<Bundle> of commands in, ArrayList<Bundle> of their results (null entries allowed) out, same order
+    public static final String TRANSACT_PROVIDER_METHOD_BATCH = "transact_batch";
+    public static final String TRANSACT_KEY_BATCH = "transact_batch";
+    // String, set in the result of a batched command that threw instead of the command's own result
+    public static final String TRANSACT_KEY_ERROR = "transact_error";
 
     public static final String TRANSACT_KEY_PKG = "pkg";
     public static final String TRANSACT_KEY_SHELL_PKG = "shell_pkg";
@@ -99,5 +107,7 @@ public class CmdConstants {
     public static final String RUNTIME_PROPERTIES_PKG = "pkg";
     public static final String RUNTIME_PROPERTIES_PROCESS = "process";
     public static final String RUNTIME_PROPERTIES_APPID = "appId";
+    // Boolean, the engine handles CMD_GET_PACKAGE_INFOS
+    public static final String RUNTIME_PROPERTIES_BATCH_PACKAGE_INFO = "batchPackageInfo";
     /**************BEGIN RUNTIME_PROPERTIES*******************/
 }
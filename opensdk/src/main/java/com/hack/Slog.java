@@ -2,55 +2,230 @@ package com.hack;
 
 import android.util.Log;
 
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Log facade that drops messages below the current level before any string is built.
+ *
+ * The fixed arity overloads don't allocate when the level is off, the varargs ones still create
+ * their array at the call site. For arguments that are expensive to compute either pass a
+ * {@link Supplier} or guard the call with {@link #isLoggable(int)}; a capturing lambda is itself an
+ * allocation, so on hot paths the guard is the cheaper of the two.
+ *
+ * Only %s, %d and %% are handled by the built-in formatter, any other conversion goes to String.format.
+ */
 public class Slog {
+    private static final int MAX_BUILDER_CAPACITY = 4 * 1024;
+    private static final int MAX_FIXED_ARGS = 3;
+
+    private static volatile int sLevel = Features.DEBUG ? Log.VERBOSE : Log.INFO;
+
+    private static final ThreadLocal<Buffers> sBuffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    /**
+     * per thread scratch space. An argument's toString() may log too, so each buffer is marked
+     * while in use and a nested call allocates its own instead of clobbering the outer one.
+     */
+    private static final class Buffers {
+        StringBuilder builder = new StringBuilder(256);
+        final Object[] args = new Object[MAX_FIXED_ARGS];
+        boolean formatting;
+        boolean argsInUse;
+    }
+
+    /**
+     * messages below this level are dropped, one of the {@link Log} priorities.
+     */
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    public static boolean isLoggable(int level) {
+        return level >= sLevel;
+    }
+
+    public static boolean iSloggable(String tag, int verbose) {
+        return isLoggable(verbose);
+    }
+
     public static void print(String tag, String format) {
-        Log.d(tag, format);
+        d(tag, format);
+    }
+
+    public static void println(int level, String tag, String msg) {
+        if (level >= sLevel) {
+            Log.println(level, tag, msg);
+        }
     }
 
     public static void d(String tag, String format) {
-        Log.d(tag, format);
+        println(Log.DEBUG, tag, format);
     }
 
     public static void v(String tag, String format) {
-        Log.v(tag, format);
+        println(Log.VERBOSE, tag, format);
     }
 
     public static void e(String tag, String format) {
-        Log.e(tag, format);
+        println(Log.ERROR, tag, format);
     }
 
     public static void w(String tag, String format) {
-        Log.w(tag, format);
+        println(Log.WARN, tag, format);
     }
 
     public static void i(String tag, String format) {
-        Log.i(tag, format);
+        println(Log.INFO, tag, format);
+    }
+
+    public static void d(String tag, Supplier<String> msg) {
+        log(Log.DEBUG, tag, msg);
+    }
+
+    public static void v(String tag, Supplier<String> msg) {
+        log(Log.VERBOSE, tag, msg);
+    }
+
+    public static void i(String tag, Supplier<String> msg) {
+        log(Log.INFO, tag, msg);
+    }
+
+    public static void d(String tag, String msg, Object arg) {
+        log(Log.DEBUG, tag, msg, arg, null, null, 1);
+    }
+
+    public static void d(String tag, String msg, Object arg0, Object arg1) {
+        log(Log.DEBUG, tag, msg, arg0, arg1, null, 2);
+    }
+
+    public static void d(String tag, String msg, Object arg0, Object arg1, Object arg2) {
+        log(Log.DEBUG, tag, msg, arg0, arg1, arg2, 3);
+    }
+
+    public static void v(String tag, String msg, Object arg) {
+        log(Log.VERBOSE, tag, msg, arg, null, null, 1);
+    }
+
+    public static void v(String tag, String msg, Object arg0, Object arg1) {
+        log(Log.VERBOSE, tag, msg, arg0, arg1, null, 2);
+    }
+
+    public static void i(String tag, String msg, Object arg) {
+        log(Log.INFO, tag, msg, arg, null, null, 1);
+    }
+
+    public static void i(String tag, String msg, Object arg0, Object arg1) {
+        log(Log.INFO, tag, msg, arg0, arg1, null, 2);
+    }
+
+    public static void w(String tag, String msg, Object arg) {
+        log(Log.WARN, tag, msg, arg, null, null, 1);
+    }
+
+    public static void w(String tag, String msg, Object arg0, Object arg1) {
+        log(Log.WARN, tag, msg, arg0, arg1, null, 2);
+    }
+
+    public static void e(String tag, String msg, Object arg) {
+        log(Log.ERROR, tag, msg, arg, null, null, 1);
+    }
+
+    public static void e(String tag, String msg, Object arg0, Object arg1) {
+        log(Log.ERROR, tag, msg, arg0, arg1, null, 2);
     }
 
     public static void e(String tag, String msg, Object... format) {
-        Log.e(tag, String.format(msg, format));
+        if (isLoggable(Log.ERROR)) Log.e(tag, format(msg, format, format.length));
     }
 
     public static void w(String tag, String msg, Object... format) {
-        Log.w(tag, String.format(msg, format));
+        if (isLoggable(Log.WARN)) Log.w(tag, format(msg, format, format.length));
     }
 
     public static void i(String tag, String msg, Object... format) {
-        Log.i(tag, String.format(msg, format));
+        if (isLoggable(Log.INFO)) Log.i(tag, format(msg, format, format.length));
     }
 
     public static void d(String tag, String msg, Object... format) {
-        Log.d(tag, String.format(msg, format));
+        if (isLoggable(Log.DEBUG)) Log.d(tag, format(msg, format, format.length));
     }
 
     public static void v(String tag, String msg, Object... format) {
-        Log.v(tag, String.format(msg, format));
+        if (isLoggable(Log.VERBOSE)) Log.v(tag, format(msg, format, format.length));
     }
 
-    public static boolean iSloggable(String tag, int verbose) {
-        if (Features.DEBUG) {
-            return true;
+    private static void log(int level, String tag, Supplier<String> msg) {
+        if (level >= sLevel) {
+            Log.println(level, tag, String.valueOf(msg.get()));
+        }
+    }
+
+    private static void log(int level, String tag, String msg, Object arg0, Object arg1, Object arg2, int count) {
+        if (level < sLevel) {
+            return;
+        }
+        Buffers buffers = sBuffers.get();
+        boolean nested = buffers.argsInUse;
+        Object[] args = nested ? new Object[MAX_FIXED_ARGS] : buffers.args;
+        buffers.argsInUse = true;
+        args[0] = arg0;
+        args[1] = arg1;
+        args[2] = arg2;
+        try {
+            Log.println(level, tag, format(msg, args, count));
+        } finally {
+            if (!nested) {
+                Arrays.fill(args, null);
+                buffers.argsInUse = false;
+            }
+        }
+    }
+
+    static String format(String msg, Object[] args, int count) {
+        if (count == 0) {
+            return msg;
+        }
+        Buffers buffers = sBuffers.get();
+        boolean nested = buffers.formatting;
+        StringBuilder builder = nested ? new StringBuilder(msg.length() + 32) : buffers.builder;
+        buffers.formatting = true;
+        try {
+            builder.setLength(0);
+            int next = 0;
+            int length = msg.length();
+            for (int i = 0; i < length; i++) {
+                char c = msg.charAt(i);
+                if (c != '%' || i + 1 == length) {
+                    builder.append(c);
+                    continue;
+                }
+                char conversion = msg.charAt(++i);
+                if (conversion == '%') {
+                    builder.append('%');
+                } else if ((conversion == 's' || conversion == 'd') && next < count) {
+                    builder.append(args[next++]);
+                } else {
+                    return String.format(msg, Arrays.copyOf(args, count));
+                }
+            }
+            return builder.toString();
+        } finally {
+            if (!nested) {
+                buffers.formatting = false;
+                if (builder.capacity() > MAX_BUILDER_CAPACITY) {
+                    buffers.builder = new StringBuilder(256);
+                }
+            }
         }
-        return false;
     }
 }
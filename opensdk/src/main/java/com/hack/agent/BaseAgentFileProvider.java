@@ -1,7 +1,5 @@
 package com.hack.agent;
 
-import static com.hack.opensdk.CmdConstants.CMD_FILE_PROVIDER_MAKE_URI;
-
 import android.content.ContentProvider;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
@@ -19,7 +17,7 @@ import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
 
-import com.hack.opensdk.Cmd;
+import com.hack.Slog;
 
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
@@ -28,11 +26,16 @@ import java.util.Arrays;
 public class BaseAgentFileProvider extends ContentProvider {
     private static final String TAG ="proxies." + BaseAgentFileProvider.class.getSimpleName();
 
+    private final ProviderClientPool mClients = ProviderClientPool.get();
+
     @Override
     public boolean onCreate() {
         return false;
     }
 
+    /**
+     * acquires a new client that the caller has to close, the provider calls below go through {@link ProviderClientPool}.
+     */
     public static ContentProviderClient getClient(Context context, Uri uri) {
         ContentResolver resolver = context.getContentResolver();
         return resolver.acquireContentProviderClient(uri.getAuthority());
@@ -40,87 +43,69 @@ public class BaseAgentFileProvider extends ContentProvider {
 
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
-        Uri proxyOrTarget = (Uri) Cmd.INSTANCE().exec(CMD_FILE_PROVIDER_MAKE_URI, uri);
-        ContentProviderClient client = getClient(getContext(), proxyOrTarget);
-        if (client != null) {
-            try {
-                return client.query(proxyOrTarget, projection, selection, selectionArgs, sortOrder);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
+        try {
+            return mClients.call(getContext(), uri,
+                    (client, target) -> client.query(target, projection, selection, selectionArgs, sortOrder));
+        } catch (RemoteException | FileNotFoundException e) {
+            e.printStackTrace();
         }
         return null;
     }
 
     @Override
     public String getType(Uri uri) {
-        Log.e(TAG, "getType: "+uri );
-        Uri proxyOrTarget = (Uri) Cmd.INSTANCE().exec(CMD_FILE_PROVIDER_MAKE_URI, uri);
-        ContentProviderClient client = getClient(getContext(), proxyOrTarget);
-        if (client != null) {
-            try {
-                return client.getType(proxyOrTarget);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
+        Slog.d(TAG, "getType: %s", uri);
+        try {
+            return mClients.call(getContext(), uri, (client, target) -> client.getType(target));
+        } catch (RemoteException | FileNotFoundException e) {
+            e.printStackTrace();
         }
         return null;
     }
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
-        Uri proxyOrTarget = (Uri) Cmd.INSTANCE().exec(CMD_FILE_PROVIDER_MAKE_URI, uri);
-        ContentProviderClient client = getClient(getContext(), proxyOrTarget);
-        if (client != null) {
-            try {
-                return client.insert(proxyOrTarget, values);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
+        try {
+            return mClients.callOnce(getContext(), uri, (client, target) -> client.insert(target, values));
+        } catch (RemoteException | FileNotFoundException e) {
+            e.printStackTrace();
         }
         return null;
     }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        Uri proxyOrTarget = (Uri) Cmd.INSTANCE().exec(CMD_FILE_PROVIDER_MAKE_URI, uri);
-        ContentProviderClient client = getClient(getContext(), proxyOrTarget);
-        if (client != null) {
-            try {
-                return client.delete(proxyOrTarget, selection, selectionArgs);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
+        try {
+            Integer count = mClients.callOnce(getContext(), uri,
+                    (client, target) -> client.delete(target, selection, selectionArgs));
+            return count != null ? count : 0;
+        } catch (RemoteException | FileNotFoundException e) {
+            e.printStackTrace();
         }
         return 0;
     }
 
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        Log.e(TAG, "update: "+uri );
-        Uri proxyOrTarget = (Uri) Cmd.INSTANCE().exec(CMD_FILE_PROVIDER_MAKE_URI, uri);
-        ContentProviderClient client = getClient(getContext(), proxyOrTarget);
-        if (client != null) {
-            try {
-                return client.update(proxyOrTarget, values, selection, selectionArgs);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
+        Slog.d(TAG, "update: %s", uri);
+        try {
+            Integer count = mClients.callOnce(getContext(), uri,
+                    (client, target) -> client.update(target, values, selection, selectionArgs));
+            return count != null ? count : 0;
+        } catch (RemoteException | FileNotFoundException e) {
+            e.printStackTrace();
         }
         return 0;
     }
 
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
-        Log.e(TAG, "bulkInsert: "+uri );
-        Uri proxyOrTarget = (Uri) Cmd.INSTANCE().exec(CMD_FILE_PROVIDER_MAKE_URI, uri);
-        ContentProviderClient client = getClient(getContext(), proxyOrTarget);
-        if (client != null) {
-            try {
-                return client.bulkInsert(proxyOrTarget, values);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
+        Slog.d(TAG, "bulkInsert: %s", uri);
+        try {
+            Integer count = mClients.callOnce(getContext(), uri, (client, target) -> client.bulkInsert(target, values));
+            return count != null ? count : 0;
+        } catch (RemoteException | FileNotFoundException e) {
+            e.printStackTrace();
         }
         return 0;
     }
@@ -128,41 +113,27 @@ public class BaseAgentFileProvider extends ContentProvider {
     @Override
     public AssetFileDescriptor openAssetFile(Uri uri, String str)
             throws FileNotFoundException {
-        Uri proxyOrTarget = (Uri) Cmd.INSTANCE().exec(CMD_FILE_PROVIDER_MAKE_URI, uri);
-        Log.e(TAG, "openAssetFile " + uri + ", str " + str + "->" + proxyOrTarget);
-        ContentProviderClient client = getClient(getContext(), proxyOrTarget);
-        Log.e(TAG, "openAssetFile: client result "+client );
-        if (client != null) {
-            try {
-                AssetFileDescriptor descriptor =  client.openAssetFile(proxyOrTarget, str);
-                Log.e(TAG, "openAssetFile  result " + uri + ", str " + str + "->" + descriptor);
-                return descriptor;
-            } catch (RemoteException e) {
-                e.printStackTrace();
-                Log.e(TAG, "openAssetFile  result "+uri ,e);
-                throw new FileNotFoundException(uri.toString());
-
-
-            }
+        Slog.d(TAG, "openAssetFile %s, str %s", uri, str);
+        AssetFileDescriptor descriptor;
+        try {
+            descriptor = mClients.call(getContext(), uri, (client, target) -> client.openAssetFile(target, str));
+        } catch (RemoteException e) {
+            Log.e(TAG, "openAssetFile  result " + uri, e);
+            throw new FileNotFoundException(uri.toString());
         }
-        return super.openAssetFile(uri, str);
+        Slog.d(TAG, "openAssetFile result %s, str %s -> %s", uri, str, descriptor);
+        return descriptor;
     }
 
     @Override
     public AssetFileDescriptor openAssetFile(Uri uri, String str, CancellationSignal cancellationSignal)
             throws FileNotFoundException {
-        Uri proxyOrTarget = (Uri) Cmd.INSTANCE().exec(CMD_FILE_PROVIDER_MAKE_URI, uri);
-        Log.e(TAG, "openAssetFile 2" + uri + ", str " + str + ", cancellationSignal " + cancellationSignal + "->" + proxyOrTarget);
-
-        ContentProviderClient client = getClient(getContext(), proxyOrTarget);
-        if (client != null) {
-            try {
-                AssetFileDescriptor descriptor = client.openAssetFile(proxyOrTarget, str, cancellationSignal);
-                Log.e(TAG, "openAssetFile 2  result " + proxyOrTarget + ", str " + str + "->" + client.getLocalContentProvider());
-                return descriptor;
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
+        Slog.d(TAG, "openAssetFile 2 %s, str %s, cancellationSignal %s", uri, str, cancellationSignal);
+        try {
+            return mClients.call(getContext(), uri,
+                    (client, target) -> client.openAssetFile(target, str, cancellationSignal));
+        } catch (RemoteException e) {
+            e.printStackTrace();
         }
         return super.openAssetFile(uri, str, cancellationSignal);
     }
@@ -170,15 +141,12 @@ public class BaseAgentFileProvider extends ContentProvider {
     @Override
     public ParcelFileDescriptor openFile(Uri uri, String str)
             throws FileNotFoundException {
-        Log.e(TAG, "openFile: "+uri );
-        Uri proxyOrTarget = (Uri) Cmd.INSTANCE().exec(CMD_FILE_PROVIDER_MAKE_URI, uri);
-        ContentProviderClient client = getClient(getContext(), proxyOrTarget);
-        if (client != null) {
-            try {
-                return client.openFile(proxyOrTarget, str);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
+        Slog.d(TAG, "openFile: %s", uri);
+        try {
+            return mClients.call(getContext(), uri,
+                    (client, target) -> client.openFile(target, str));
+        } catch (RemoteException e) {
+            e.printStackTrace();
         }
         return super.openFile(uri, str);
     }
@@ -186,15 +154,12 @@ public class BaseAgentFileProvider extends ContentProvider {
     @Override
     public ParcelFileDescriptor openFile(Uri uri, String str, CancellationSignal cancellationSignal)
             throws FileNotFoundException {
-        Log.e(TAG, "openFile: "+uri );
-        Uri proxyOrTarget = (Uri) Cmd.INSTANCE().exec(CMD_FILE_PROVIDER_MAKE_URI, uri);
-        ContentProviderClient client = getClient(getContext(), proxyOrTarget);
-        if (client != null) {
-            try {
-                return client.openFile(proxyOrTarget, str, cancellationSignal);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
+        Slog.d(TAG, "openFile: %s", uri);
+        try {
+            return mClients.call(getContext(), uri,
+                    (client, target) -> client.openFile(target, str, cancellationSignal));
+        } catch (RemoteException e) {
+            e.printStackTrace();
         }
         return super.openFile(uri, str, cancellationSignal);
     }
@@ -202,15 +167,12 @@ public class BaseAgentFileProvider extends ContentProvider {
     @Override
     public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
             throws FileNotFoundException {
-        Log.e(TAG, "openTypedAssetFile: "+uri );
-        Uri proxyOrTarget = (Uri) Cmd.INSTANCE().exec(CMD_FILE_PROVIDER_MAKE_URI, uri);
-        ContentProviderClient client = getClient(getContext(), proxyOrTarget);
-        if (client != null) {
-            try {
-                return client.openTypedAssetFileDescriptor(proxyOrTarget, mimeTypeFilter, opts);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
+        Slog.d(TAG, "openTypedAssetFile: %s", uri);
+        try {
+            return mClients.call(getContext(), uri,
+                    (client, target) -> client.openTypedAssetFileDescriptor(target, mimeTypeFilter, opts));
+        } catch (RemoteException e) {
+            e.printStackTrace();
         }
         return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
     }
@@ -219,15 +181,12 @@ public class BaseAgentFileProvider extends ContentProvider {
     public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts,
                                                   CancellationSignal cancellationSignal)
             throws FileNotFoundException {
-        Log.e(TAG, "openTypedAssetFile: "+uri );
-        Uri proxyOrTarget = (Uri) Cmd.INSTANCE().exec(CMD_FILE_PROVIDER_MAKE_URI, uri);
-        ContentProviderClient client = getClient(getContext(), proxyOrTarget);
-        if (client != null) {
-            try {
-                return client.openTypedAssetFile(proxyOrTarget, mimeTypeFilter, opts, cancellationSignal);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
+        Slog.d(TAG, "openTypedAssetFile: %s", uri);
+        try {
+            return mClients.call(getContext(), uri,
+                    (client, target) -> client.openTypedAssetFile(target, mimeTypeFilter, opts, cancellationSignal));
+        } catch (RemoteException e) {
+            e.printStackTrace();
         }
         return super.openTypedAssetFile(uri, mimeTypeFilter, opts, cancellationSignal);
     }
@@ -235,9 +194,8 @@ public class BaseAgentFileProvider extends ContentProvider {
     @Override
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
-        Log.e(TAG, "applyBatch: " );
-        if (operations != null) {
-            Log.d(TAG, "applyBatch operations " + Arrays.toString(operations.toArray()));
+        if (operations != null && Slog.isLoggable(Log.DEBUG)) {
+            Slog.d(TAG, "applyBatch operations %s", Arrays.toString(operations.toArray()));
         }
         return super.applyBatch(operations);
     }
@@ -19,6 +19,6 @@ public class HackJobService extends Service {
 
     @Override
     public boolean onUnbind(Intent intent) {
-        return (boolean) Cmd.INSTANCE().exec(CMD_AGENT_JOB_SERVICE_UNBIND, intent);
+        return Cmd.INSTANCE().execBoolean(CMD_AGENT_JOB_SERVICE_UNBIND, intent);
     }
 }
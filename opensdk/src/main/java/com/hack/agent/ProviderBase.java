@@ -9,6 +9,11 @@ import com.hack.Features;
 import com.hack.opensdk.Cmd;
 import com.hack.opensdk.HackRuntime;
 import com.hack.server.core.transact.TransactActivityLifecycle;
+import com.hack.utils.FileLock;
+import com.hack.utils.ThreadUtils;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 public abstract class ProviderBase extends AppAgentFileProvider {
     private static final boolean DEBUG = Features.DEBUG;
@@ -32,5 +37,11 @@ public abstract class ProviderBase extends AppAgentFileProvider {
         return (Bundle) Cmd.INSTANCE().exec(getProviderCallType(), method, arg, extras);
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        ThreadUtils.dump(writer);
+        FileLock.getInstance().dump(writer);
+    }
+
     public abstract int getProviderCallType();
 }
@@ -0,0 +1,251 @@
+package com.hack.agent;
+
+import static com.hack.opensdk.CmdConstants.CMD_FILE_PROVIDER_MAKE_URI;
+
+import android.content.ContentProviderClient;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.DeadObjectException;
+import android.os.Handler;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.util.LruCache;
+
+import com.hack.Features;
+import com.hack.Slog;
+import com.hack.opensdk.Cmd;
+import com.hack.utils.ThreadUtils;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Provider clients shared by the agent file providers, one per target authority.
+ * A client is reference counted while calls are running on it and closed after it has been idle
+ * for a while, but not while a cursor or file descriptor it returned is still open; when the
+ * target provider dies the client is dropped and acquired again for idempotent calls.
+ *
+ * The agent uri -> target uri rewrites from the engine are cached as well, so a proxied read
+ * no longer costs a make-uri call plus a provider lookup.
+ */
+class ProviderClientPool {
+    private static final boolean DEBUG = Features.DEBUG;
+    private static final String TAG = ProviderClientPool.class.getSimpleName();
+
+    private static final long IDLE_RELEASE_MS = 10 * 1000;
+    private static final int MAX_URI_ENTRIES = 128;
+    private static final int MAX_ATTEMPTS = 2;
+
+    private static final ProviderClientPool sInstance = new ProviderClientPool();
+
+    interface ClientCall<T> {
+        T call(ContentProviderClient client, Uri target) throws RemoteException, FileNotFoundException;
+    }
+
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private final LruCache<Uri, Uri> mUriCache = new LruCache<>(MAX_URI_ENTRIES);
+    private final Handler mHandler = ThreadUtils.getUiThreadHandler();
+
+    static ProviderClientPool get() {
+        return sInstance;
+    }
+
+    private ProviderClientPool() {
+    }
+
+    /**
+     * @return the uri the agent uri is served by, or null if the engine has no mapping for it.
+     */
+    Uri resolve(Uri uri) {
+        Uri target = mUriCache.get(uri);
+        if (target == null) {
+            target = (Uri) Cmd.INSTANCE().exec(CMD_FILE_PROVIDER_MAKE_URI, uri);
+            if (target != null) {
+                mUriCache.put(uri, target);
+            }
+        }
+        return target;
+    }
+
+    /**
+     * runs an idempotent call (query, getType, open) against the provider serving the uri,
+     * once more with a fresh client if the provider died.
+     *
+     * @return the result of the call, or null if the target provider could not be acquired.
+     */
+    <T> T call(Context context, Uri uri, ClientCall<T> call) throws RemoteException, FileNotFoundException {
+        return call(context, uri, call, MAX_ATTEMPTS);
+    }
+
+    /**
+     * runs a call that changes data (insert, update, delete) exactly once, the provider may have
+     * applied it before dying, so it is never retried.
+     */
+    <T> T callOnce(Context context, Uri uri, ClientCall<T> call) throws RemoteException, FileNotFoundException {
+        return call(context, uri, call, 1);
+    }
+
+    private <T> T call(Context context, Uri uri, ClientCall<T> call, int maxAttempts)
+            throws RemoteException, FileNotFoundException {
+        Uri target = resolve(uri);
+        if (target == null) {
+            return null;
+        }
+        String authority = target.getAuthority();
+        for (int attempt = 1; ; attempt++) {
+            Entry entry = acquire(context, authority);
+            if (entry == null) {
+                return null;
+            }
+            try {
+                T result = call.call(entry.client, target);
+                holdWhileOpen(entry, result);
+                return result;
+            } catch (DeadObjectException e) {
+                Slog.w(TAG, "provider died: " + authority);
+                discard(entry);
+                if (attempt >= maxAttempts) {
+                    throw e;
+                }
+                // the package may have been replaced, so the rewrite has to be asked for again
+                mUriCache.remove(uri);
+                target = resolve(uri);
+                if (target == null) {
+                    return null;
+                }
+                authority = target.getAuthority();
+            } finally {
+                release(entry);
+            }
+        }
+    }
+
+    private Entry acquire(Context context, String authority) {
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(authority);
+            if (entry == null) {
+                // unstable, a dying provider must not take the agent process down with it
+                ContentProviderClient client = context.getContentResolver()
+                        .acquireUnstableContentProviderClient(authority);
+                if (client == null) {
+                    return null;
+                }
+                if (DEBUG) Slog.d(TAG, "acquire client " + authority);
+                entry = new Entry(authority, client);
+                mEntries.put(authority, entry);
+            } else {
+                mHandler.removeCallbacks(entry.idleRelease);
+            }
+            entry.refs++;
+            return entry;
+        }
+    }
+
+    /**
+     * keeps the client from being idle released while a result that reads through it is open.
+     */
+    private void holdWhileOpen(Entry entry, Object result) {
+        if (result instanceof Cursor || result instanceof ParcelFileDescriptor
+                || result instanceof AssetFileDescriptor) {
+            synchronized (mEntries) {
+                entry.outstanding.add(result);
+            }
+        }
+    }
+
+    private void release(Entry entry) {
+        synchronized (mEntries) {
+            if (--entry.refs > 0) {
+                return;
+            }
+            if (entry.discarded) {
+                entry.close();
+            } else {
+                mHandler.postDelayed(entry.idleRelease, IDLE_RELEASE_MS);
+            }
+        }
+    }
+
+    private void discard(Entry entry) {
+        synchronized (mEntries) {
+            entry.discarded = true;
+            if (mEntries.get(entry.authority) == entry) {
+                mEntries.remove(entry.authority);
+            }
+            mHandler.removeCallbacks(entry.idleRelease);
+        }
+    }
+
+    private void releaseIdle(Entry entry) {
+        synchronized (mEntries) {
+            if (entry.refs > 0 || mEntries.get(entry.authority) != entry) {
+                return;
+            }
+            if (entry.hasOpenResults()) {
+                mHandler.postDelayed(entry.idleRelease, IDLE_RELEASE_MS);
+                return;
+            }
+            mEntries.remove(entry.authority);
+            if (DEBUG) Slog.d(TAG, "release idle client " + entry.authority);
+            entry.close();
+        }
+    }
+
+    private final class Entry {
+        final String authority;
+        final ContentProviderClient client;
+        final Runnable idleRelease = new Runnable() {
+            @Override
+            public void run() {
+                releaseIdle(Entry.this);
+            }
+        };
+        /**
+         * cursors and descriptors returned by the client, guarded by mEntries.
+         */
+        final ArrayList<Object> outstanding = new ArrayList<>();
+        int refs;
+        boolean discarded;
+
+        Entry(String authority, ContentProviderClient client) {
+            this.authority = authority;
+            this.client = client;
+        }
+
+        /**
+         * drops the results that have been closed since the last check.
+         */
+        boolean hasOpenResults() {
+            Iterator<Object> iterator = outstanding.iterator();
+            while (iterator.hasNext()) {
+                if (isClosed(iterator.next())) {
+                    iterator.remove();
+                }
+            }
+            return !outstanding.isEmpty();
+        }
+
+        void close() {
+            try {
+                client.close();
+            } catch (Throwable e) {
+                if (DEBUG) Slog.w(TAG, "close client " + authority + ": " + e);
+            }
+        }
+    }
+
+    private static boolean isClosed(Object result) {
+        if (result instanceof Cursor) {
+            return ((Cursor) result).isClosed();
+        }
+        // closing a descriptor, or handing it to the caller through binder, invalidates its fd
+        ParcelFileDescriptor pfd = result instanceof AssetFileDescriptor
+                ? ((AssetFileDescriptor) result).getParcelFileDescriptor() : (ParcelFileDescriptor) result;
+        return !pfd.getFileDescriptor().valid();
+    }
+}
@@ -1,25 +1,62 @@
 package com.hack.opensdk;
 
-import com.hack.Features;
+import android.util.Log;
+
 import com.hack.Slog;
-import com.hack.utils.RefUtils;
 import com.hack.utils.Singleton;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.Arrays;
 
 public class Cmd {
     private static final String TAG = Cmd.class.getSimpleName();
-    private static final boolean DEBUG = Features.DEBUG;
 
     private static final String ENGINE_CMD_CLASS = "com.core.Cmd";
 
-    private RefUtils.MethodRef mEngineExecMethod;
+    /**
+     * shared by every call that carries no argument, the engine never writes into it.
+     */
+    private static final Object[] EMPTY_ARGS = new Object[0];
+
+    /**
+     * returned by {@link #execInt} when the engine has no result for the command.
+     */
+    public static final int INVALID_RESULT = -1;
+
+    private static final int MAX_FIXED_ARGS = 3;
+
+    private static final ThreadLocal<Buffers> sBuffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    /**
+     * per thread argument arrays of the fixed arity calls, cleared after each call; the engine
+     * doesn't keep them past the call. It may call back into Cmd on the same thread though, so
+     * the arrays are marked while in use and a nested call allocates its own.
+     */
+    private static final class Buffers {
+        final Object[][] args = new Object[MAX_FIXED_ARGS + 1][];
+        final Object[] invokeArgs = new Object[2];
+        boolean inUse;
+
+        Buffers() {
+            for (int i = 0; i <= MAX_FIXED_ARGS; i++) {
+                args[i] = i == 0 ? EMPTY_ARGS : new Object[i];
+            }
+        }
+    }
+
+    private final Method mEngineExecMethod;
 
     public static Cmd INSTANCE() {
         return singleton.get();
     }
 
-    private static Singleton<Cmd> singleton = new Singleton<Cmd>() {
+    private static final Singleton<Cmd> singleton = new Singleton<Cmd>() {
         @Override
         protected Cmd create() {
             return new Cmd();
@@ -28,29 +65,171 @@ public class Cmd {
 
     private Cmd() {
         Class engineCmdClass = null;
+        // a build with the engine on the classpath uses it directly, otherwise this probe runs
+        // while the engine loader is still being built and getHackClassLoader() waits for it
         try {
             engineCmdClass = Class.forName(ENGINE_CMD_CLASS);
         } catch (ClassNotFoundException ignore) {
         }
 
         if (engineCmdClass == null) {
+            ClassLoader hackClassLoader = HackRuntime.getHackClassLoader();
+            if (hackClassLoader == null) {
+                throw new IllegalStateException("engine not installed");
+            }
             try {
-                engineCmdClass = HackRuntime.getHackClassLoader().loadClass(ENGINE_CMD_CLASS);
+                engineCmdClass = hackClassLoader.loadClass(ENGINE_CMD_CLASS);
             } catch (ClassNotFoundException e) {
-                e.printStackTrace();
+                throw new IllegalStateException("engine not loaded: " + ENGINE_CMD_CLASS, e);
             }
         }
 
-        mEngineExecMethod = new RefUtils.MethodRef(
-                engineCmdClass,
-                true, "exec",
-                new Class[]{int.class, Object[].class});
+        try {
+            mEngineExecMethod = engineCmdClass.getDeclaredMethod("exec", int.class, Object[].class);
+            mEngineExecMethod.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("engine entry not found: " + ENGINE_CMD_CLASS + "#exec", e);
+        }
+    }
+
+    public Object exec(int cmd) {
+        return invokeFixed(cmd, 0, null, null, null);
     }
 
     public Object exec(int cmd, Object... args) {
-        if (DEBUG) Slog.d(TAG, "begin exec %d %s", cmd, Arrays.toString(args));
-        Object ret = mEngineExecMethod.invoke(null, cmd, args);
-        if (DEBUG) Slog.d(TAG, "end exec %d %s", cmd, ret);
+        return invoke(cmd, args == null ? EMPTY_ARGS : args);
+    }
+
+    /**
+     * @return the int result of the command, or {@link #INVALID_RESULT} if the engine returned nothing.
+     */
+    public int execInt(int cmd) {
+        return toInt(invokeFixed(cmd, 0, null, null, null));
+    }
+
+    public int execInt(int cmd, Object arg) {
+        return toInt(invokeFixed(cmd, 1, arg, null, null));
+    }
+
+    public int execInt(int cmd, Object arg0, Object arg1) {
+        return toInt(invokeFixed(cmd, 2, arg0, arg1, null));
+    }
+
+    public int execInt(int cmd, Object arg0, Object arg1, Object arg2) {
+        return toInt(invokeFixed(cmd, 3, arg0, arg1, arg2));
+    }
+
+    public int execInt(int cmd, Object... args) {
+        return toInt(exec(cmd, args));
+    }
+
+    /**
+     * @return the long result of the command, or {@link #INVALID_RESULT} if the engine returned nothing.
+     */
+    public long execLong(int cmd) {
+        return toLong(invokeFixed(cmd, 0, null, null, null));
+    }
+
+    public long execLong(int cmd, Object arg) {
+        return toLong(invokeFixed(cmd, 1, arg, null, null));
+    }
+
+    public long execLong(int cmd, Object arg0, Object arg1) {
+        return toLong(invokeFixed(cmd, 2, arg0, arg1, null));
+    }
+
+    public long execLong(int cmd, Object arg0, Object arg1, Object arg2) {
+        return toLong(invokeFixed(cmd, 3, arg0, arg1, arg2));
+    }
+
+    public long execLong(int cmd, Object... args) {
+        return toLong(exec(cmd, args));
+    }
+
+    /**
+     * @return the boolean result of the command, false if the engine returned nothing.
+     */
+    public boolean execBoolean(int cmd) {
+        return toBoolean(invokeFixed(cmd, 0, null, null, null));
+    }
+
+    public boolean execBoolean(int cmd, Object arg) {
+        return toBoolean(invokeFixed(cmd, 1, arg, null, null));
+    }
+
+    public boolean execBoolean(int cmd, Object arg0, Object arg1) {
+        return toBoolean(invokeFixed(cmd, 2, arg0, arg1, null));
+    }
+
+    public boolean execBoolean(int cmd, Object arg0, Object arg1, Object arg2) {
+        return toBoolean(invokeFixed(cmd, 3, arg0, arg1, arg2));
+    }
+
+    public boolean execBoolean(int cmd, Object... args) {
+        return toBoolean(exec(cmd, args));
+    }
+
+    private static int toInt(Object ret) {
+        return ret != null ? (Integer) ret : INVALID_RESULT;
+    }
+
+    private static long toLong(Object ret) {
+        return ret != null ? ((Number) ret).longValue() : INVALID_RESULT;
+    }
+
+    private static boolean toBoolean(Object ret) {
+        return ret != null && (Boolean) ret;
+    }
+
+    /**
+     * invoke with the per thread arrays, so the call itself allocates nothing but the boxed arguments.
+     */
+    private Object invokeFixed(int cmd, int count, Object arg0, Object arg1, Object arg2) {
+        Buffers buffers = sBuffers.get();
+        boolean nested = buffers.inUse;
+        Object[] args = nested ? (count == 0 ? EMPTY_ARGS : new Object[count]) : buffers.args[count];
+        Object[] invokeArgs = nested ? new Object[2] : buffers.invokeArgs;
+        buffers.inUse = true;
+        if (count > 0) args[0] = arg0;
+        if (count > 1) args[1] = arg1;
+        if (count > 2) args[2] = arg2;
+        try {
+            return invoke(cmd, args, invokeArgs);
+        } finally {
+            if (!nested) {
+                Arrays.fill(args, null);
+                Arrays.fill(invokeArgs, null);
+                buffers.inUse = false;
+            }
+        }
+    }
+
+    private Object invoke(int cmd, Object[] args) {
+        return invoke(cmd, args, new Object[2]);
+    }
+
+    private Object invoke(int cmd, Object[] args, Object[] invokeArgs) {
+        // guarded so the boxing and Arrays.toString only happen when debug logging is on
+        boolean debug = Slog.isLoggable(Log.DEBUG);
+        if (debug) Slog.d(TAG, "begin exec %d %s", cmd, Arrays.toString(args));
+        invokeArgs[0] = cmd;
+        invokeArgs[1] = args;
+        Object ret;
+        try {
+            ret = mEngineExecMethod.invoke(null, invokeArgs);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException("exec " + cmd + " failed", cause);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("exec " + cmd + " failed", e);
+        }
+        if (debug) Slog.d(TAG, "end exec %d %s", cmd, ret);
         return ret;
     }
 }
@@ -14,15 +14,27 @@ import android.util.Log;
 import com.hack.Slog;
 import com.hack.server.core.TransactCallback;
 import com.hack.server.core.TransactRegistry;
+import com.hack.server.core.transact.ProcessBindCallback;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 public class HackApi {
     private static final String TAG = HackApi.class.getSimpleName();
     private static final TransactRegistry sTransactRegistry = new TransactRegistry();
+    private static final PackageCache sPackageCache = new PackageCache();
+    // null until the engine's runtime properties were read, see supportsBatchPackageQuery()
+    private static volatile Boolean sBatchPackageQuery;
+
+    static {
+        // keeps AgentProcessRegistry up to date, apps may register their own subclass instead
+        sTransactRegistry.registerTransactCallback(CmdConstants.TRANSACT_CMD_PROCESS_BINDED, new ProcessBindCallback());
+    }
 
     public static void attachBaseContext(Application app, Context base) {
         Cmd.INSTANCE().exec(CmdConstants.CMD_APPLICATION_ATTACHBASE, app, base);
@@ -44,11 +56,13 @@ public class HackApi {
      * @return public static final int INSTALL_SUCCEEDED = 1;
      */
     public static int installPackageFromHost(String packageName, int userId, boolean forceInstall) {
-        return (int) Cmd.INSTANCE().exec(
+        int ret = Cmd.INSTANCE().execInt(
                 CmdConstants.CMD_INSTALL_PACKAGE,
                 userId, packageName,
                 forceInstall ? CmdConstants.MODE_FORCE_INSTALL : 0
         );
+        sPackageCache.invalidate(userId, packageName);
+        return ret;
     }
 
     /**
@@ -69,9 +83,12 @@ public class HackApi {
         if (forceInstall) {
             flags |= CmdConstants.MODE_FORCE_INSTALL;
         }
-        return (int) Cmd.INSTANCE().exec(
+        int ret = Cmd.INSTANCE().execInt(
                 CmdConstants.CMD_INSTALL_PACKAGE, userId, apkPathOrDir, flags
         );
+        // the package name is unknown here, drop everything of this user.
+        sPackageCache.invalidate(userId, null);
+        return ret;
     }
 
     /**
@@ -80,12 +97,14 @@ public class HackApi {
      * @return public static final int DELETE_SUCCEEDED = 1;
      */
     public static int uninstallPackage(String packageName, int userId) {
-        return (int) Cmd.INSTANCE().exec(
+        int ret = Cmd.INSTANCE().execInt(
                 CmdConstants.CMD_UNINSTALL_PACKAGE,
                 userId,
                 packageName,
                 0
         );
+        sPackageCache.invalidate(userId, packageName);
+        return ret;
     }
 
     /**
@@ -94,7 +113,7 @@ public class HackApi {
      * @return public static final int DELETE_SUCCEEDED = 1;
      */
     public static int deletePackageData(String packageName, int userId) {
-        return (int) Cmd.INSTANCE().exec(
+        return Cmd.INSTANCE().execInt(
                 CmdConstants.CMD_REMOVE_PKG_DATA,
                 userId,
                 packageName,
@@ -108,7 +127,7 @@ public class HackApi {
      * @return public static final int DELETE_SUCCEEDED = 1;
      */
     public static int deletePackageCache(String packageName, int userId) {
-        return (int) Cmd.INSTANCE().exec(
+        return Cmd.INSTANCE().execInt(
                 CmdConstants.CMD_DELETE_PKG_CACHE,
                 userId,
                 packageName,
@@ -117,12 +136,87 @@ public class HackApi {
     }
 
     public static PackageInfo getPackageInfo(String packageName, int userId, int flags) {
-        return (PackageInfo) Cmd.INSTANCE().exec(
+        sPackageCache.ensureObserving();
+        PackageCache.Key key = PackageCache.key(PackageCache.TYPE_PACKAGE_INFO, userId, packageName, flags, null);
+        Object cached = sPackageCache.get(key);
+        if (cached != null) {
+            return PackageCache.isNone(cached) ? null : PackageCache.copyOf((PackageInfo) cached, PackageInfo.CREATOR);
+        }
+        int generation = sPackageCache.generation();
+        PackageInfo info = (PackageInfo) Cmd.INSTANCE().exec(
                 CmdConstants.CMD_GET_PACKAGE_INFO,
                 userId,
                 packageName,
                 flags
         );
+        sPackageCache.put(key, PackageCache.copyOf(info, PackageInfo.CREATOR), generation);
+        return info;
+    }
+
+    /**
+     * query several packages of a user, in one engine call if the engine supports it.
+     * @param packageNames the packages to look up
+     * @return packageName -> PackageInfo in the order of packageNames, packages that are not installed are absent.
+     */
+    public static Map<String, PackageInfo> getPackageInfos(List<String> packageNames, int userId, int flags) {
+        sPackageCache.ensureObserving();
+        Map<String, PackageInfo> result = new LinkedHashMap<>();
+        if (packageNames == null || packageNames.isEmpty()) {
+            return result;
+        }
+        Map<String, PackageInfo> found = new HashMap<>();
+        ArrayList<String> missing = new ArrayList<>();
+        for (String packageName : packageNames) {
+            Object cached = sPackageCache.get(
+                    PackageCache.key(PackageCache.TYPE_PACKAGE_INFO, userId, packageName, flags, null));
+            if (cached == null) {
+                missing.add(packageName);
+            } else if (!PackageCache.isNone(cached)) {
+                found.put(packageName, PackageCache.copyOf((PackageInfo) cached, PackageInfo.CREATOR));
+            }
+        }
+        if (!missing.isEmpty()) {
+            int generation = sPackageCache.generation();
+            List<PackageInfo> infos = null;
+            if (supportsBatchPackageQuery()) {
+                try {
+                    infos = (List<PackageInfo>) Cmd.INSTANCE().exec(
+                            CmdConstants.CMD_GET_PACKAGE_INFOS,
+                            userId,
+                            missing,
+                            flags
+                    );
+                } catch (RuntimeException e) {
+                    Slog.w(TAG, "batch package query failed: " + e);
+                }
+                if (infos == null || infos.size() != missing.size()) {
+                    // advertised but broken, don't ask again.
+                    Slog.w(TAG, "batch package query unsupported, falling back");
+                    sBatchPackageQuery = Boolean.FALSE;
+                    infos = null;
+                }
+            }
+            int size = missing.size();
+            for (int i = 0; i < size; i++) {
+                String packageName = missing.get(i);
+                PackageInfo info;
+                if (infos != null) {
+                    info = infos.get(i);
+                    sPackageCache.put(PackageCache.key(PackageCache.TYPE_PACKAGE_INFO, userId, packageName, flags, null),
+                            PackageCache.copyOf(info, PackageInfo.CREATOR), generation);
+                } else {
+                    info = getPackageInfo(packageName, userId, flags);
+                }
+                found.put(packageName, info);
+            }
+        }
+        for (String packageName : packageNames) {
+            PackageInfo info = found.get(packageName);
+            if (info != null) {
+                result.put(packageName, info);
+            }
+        }
+        return result;
     }
 
     public static ResolveInfo resolveIntent(Intent intent, String resolvedType, int flags, int userId) {
@@ -136,30 +230,65 @@ public class HackApi {
     }
 
     public static List<ResolveInfo> queryIntentActivities(Intent intent, String resolvedType, int flags, int userId) {
-        return (List) Cmd.INSTANCE().exec(
+        sPackageCache.ensureObserving();
+        PackageCache.Key key = PackageCache.queryKey(intent, resolvedType, flags, userId);
+        Object cached = sPackageCache.get(key);
+        if (cached != null) {
+            return PackageCache.isNone(cached) ? null
+                    : PackageCache.copyOf((List<ResolveInfo>) cached, ResolveInfo.CREATOR);
+        }
+        int generation = sPackageCache.generation();
+        List<ResolveInfo> infos = (List) Cmd.INSTANCE().exec(
                 CmdConstants.CMD_QUERY_ACTIVITIES,
                 intent,
                 resolvedType,
                 flags,
                 userId
         );
+        sPackageCache.put(key, PackageCache.copyOf(infos, ResolveInfo.CREATOR), generation);
+        return infos;
     }
 
     public static ActivityInfo getActivityInfo(ComponentName component, int flags, int userId) {
-        return (ActivityInfo) Cmd.INSTANCE().exec(
+        sPackageCache.ensureObserving();
+        PackageCache.Key key = PackageCache.activityKey(component, flags, userId);
+        Object cached = sPackageCache.get(key);
+        if (cached != null) {
+            return PackageCache.isNone(cached) ? null : PackageCache.copyOf((ActivityInfo) cached, ActivityInfo.CREATOR);
+        }
+        int generation = sPackageCache.generation();
+        ActivityInfo info = (ActivityInfo) Cmd.INSTANCE().exec(
                 CmdConstants.CMD_GET_ACTIVITY_INFO,
                 component,
                 flags,
                 userId
         );
+        sPackageCache.put(key, PackageCache.copyOf(info, ActivityInfo.CREATOR), generation);
+        return info;
     }
 
     public static List<String> getInstalledPackages(int flags, int userId) {
-        return (List<String>) Cmd.INSTANCE().exec(
+        sPackageCache.ensureObserving();
+        PackageCache.Key key = PackageCache.key(PackageCache.TYPE_INSTALLED_PACKAGES, userId, null, flags, null);
+        Object cached = sPackageCache.get(key);
+        if (cached != null) {
+            return PackageCache.isNone(cached) ? null : PackageCache.copyOf((List<String>) cached);
+        }
+        int generation = sPackageCache.generation();
+        List<String> pkgs = (List<String>) Cmd.INSTANCE().exec(
                 CmdConstants.CMD_GET_INSTALLED_PKGS,
                 flags,
                 userId
         );
+        sPackageCache.put(key, PackageCache.copyOf(pkgs), generation);
+        return pkgs;
+    }
+
+    /**
+     * @return the client side package metadata cache, its hit/miss counters tell whether lookups reach the engine.
+     */
+    public static PackageCache getPackageCache() {
+        return sPackageCache;
     }
 
 
@@ -185,7 +314,7 @@ public class HackApi {
      */
     @Deprecated
     public static boolean startPackage(String packageName, int userId) {
-        return (boolean) Cmd.INSTANCE().exec(
+        return Cmd.INSTANCE().execBoolean(
                 CmdConstants.CMD_START_PACKAGE,
                 packageName,
                 userId,
@@ -205,7 +334,7 @@ public class HackApi {
      * @return
      */
     public static int startActivity(Intent intent, int userId) {
-        return (int) Cmd.INSTANCE().exec(
+        return Cmd.INSTANCE().execInt(
                 CmdConstants.CMD_START_ACTIVITY,
                 intent,
                 null,
@@ -218,7 +347,7 @@ public class HackApi {
     }
 
     public static boolean hasAnyRunningActivity(int userId, String pkg) {
-        return (boolean) Cmd.INSTANCE().exec(CmdConstants.CMD_PACKAGE_MAYBE_VISIBLE, userId, pkg);
+        return Cmd.INSTANCE().execBoolean(CmdConstants.CMD_PACKAGE_MAYBE_VISIBLE, userId, pkg);
     }
 
     /**
@@ -227,7 +356,7 @@ public class HackApi {
      * @return 返回值建议保存，unregisterDeleteObserver的参数需要使用该返回值
      */
     public static Object registerDeleteObserver(Object callback) {
-        return (int) Cmd.INSTANCE().exec(
+        return Cmd.INSTANCE().execInt(
                 CmdConstants.CMD_REGISTER_UNINSTALL_OBSERVER,
                 callback
         );
@@ -246,7 +375,7 @@ public class HackApi {
      * @return 返回值建议保存, unregisterInstallObserver的参数需要使用该返回值
      */
     public static Object registerInstallObserver(Object callback) {
-        return (int) Cmd.INSTANCE().exec(
+        return Cmd.INSTANCE().execInt(
                 CmdConstants.CMD_REGISTER_INSTALL_OBSERVER,
                 callback
         );
@@ -323,6 +452,21 @@ public class HackApi {
         return intent;
     }
 
+    /**
+     * whether the engine advertises {@link CmdConstants#CMD_GET_PACKAGE_INFOS}, read once from its
+     * runtime properties. The prebuilt engine doesn't implement the command, so with it this is
+     * false and no batch request is ever sent; getPackageInfos then queries package by package.
+     */
+    private static boolean supportsBatchPackageQuery() {
+        Boolean supported = sBatchPackageQuery;
+        if (supported == null) {
+            supported = Boolean.TRUE.equals(
+                    getRuntimeProperty(CmdConstants.RUNTIME_PROPERTIES_BATCH_PACKAGE_INFO, (Object) null));
+            sBatchPackageQuery = supported;
+        }
+        return supported;
+    }
+
     public static Map<String, Object> getRuntimeProperties() {
         Map<String,Object> map =  (Map<String, Object>) Cmd.INSTANCE().exec(CmdConstants.CMD_GET_RUNTIME_PROPERTIES);
         return map;
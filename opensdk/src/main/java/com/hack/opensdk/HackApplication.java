@@ -4,10 +4,12 @@ import android.app.Application;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.hack.Features;
+import com.hack.utils.ProcessUtils;
 
 public class HackApplication extends Application {
 
@@ -16,12 +18,12 @@ public class HackApplication extends Application {
 
     @Override
     protected void attachBaseContext(Context base) {
+        long start = SystemClock.elapsedRealtime();
         super.attachBaseContext(base);
         if (DEBUG) Log.d(TAG, "attachBaseContext start");
         Context engineContext = base;
-        if (TextUtils.equals(base.getPackageName(), BuildConfig.MASTER_PACKAGE)) {
-            engineContext.getSharedPreferences("hack", Context.MODE_PRIVATE).edit().putString("sp.assist.pkg", BuildConfig.ASSIST_PACKAGE).commit();
-        } else {
+        boolean isMaster = TextUtils.equals(base.getPackageName(), BuildConfig.MASTER_PACKAGE);
+        if (!isMaster) {
             try {
                 if (engineContext.getPackageManager().getPackageInfo(BuildConfig.MASTER_PACKAGE, 0).applicationInfo.uid == Process.myUid()) {
                     engineContext = base.createPackageContext(BuildConfig.MASTER_PACKAGE, 0);
@@ -31,8 +33,16 @@ public class HackApplication extends Application {
                 Log.e(TAG, "master package not install ");
             }
         }
+        // the engine class loader is built in the background from here on, everything up to the
+        // first Cmd call overlaps with it
         HackRuntime.install(engineContext, "version", true);
+        // cheap now that it doesn't ask ActivityManager, so isService()/isApp() work from here on
+        ProcessUtils.tryGetProcessType(base);
+        if (isMaster) {
+            engineContext.getSharedPreferences("hack", Context.MODE_PRIVATE).edit().putString("sp.assist.pkg", BuildConfig.ASSIST_PACKAGE).commit();
+        }
         Cmd.INSTANCE().exec(CmdConstants.CMD_APPLICATION_ATTACHBASE, this, base);
+        HackRuntime.reportAttach(start);
         if (DEBUG) Log.d(TAG, "attachBaseContext end");
     }
 
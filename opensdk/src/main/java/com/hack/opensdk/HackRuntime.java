@@ -4,6 +4,8 @@ import android.content.Context;
 import android.content.pm.ProviderInfo;
 import android.os.Build;
 import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.text.TextUtils;
 
 import com.hack.Slog;
@@ -15,14 +17,27 @@ import org.json.JSONObject;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import dalvik.system.DexClassLoader;
 
 public class HackRuntime {
+    private static final String TAG = HackRuntime.class.getSimpleName();
     private static final String ENGINE_JAR_DIR = ".plugin";
     private static final String ENGINE_JAR_NAME = BuildConfig.ENGINE_JAR_NAME;
+    private static final String ENGINE_CMD_CLASS = "com.core.Cmd";
     private static ProviderInfo providerInfo;
-    private static DexClassLoader hackClassLoader;
+    private static volatile DexClassLoader hackClassLoader;
+    private static volatile FutureTask<DexClassLoader> sEngineLoader;
+
+    // startup trace, elapsedRealtime millis, -1 until measured
+    private static volatile long sJarExtractTime = -1;
+    private static volatile long sLibExtractTime = -1;
+    private static volatile long sEngineLoadTime = -1;
+    private static volatile long sEngineWaitTime = -1;
+    private static volatile long sAttachTime = -1;
 
     public static void attachProviderInfo(ProviderInfo info) {
         HackRuntime.providerInfo = info;
@@ -36,8 +51,13 @@ public class HackRuntime {
         return providerInfo;
     }
 
+    /**
+     * extracts the engine if needed and starts building its class loader on a background thread.
+     * the caller goes on with its own startup work, the first {@link #getHackClassLoader()} waits
+     * for the loader.
+     */
     public static void install(Context app, String name, boolean check) {
-        if (hackClassLoader != null) {
+        if (hackClassLoader != null || sEngineLoader != null) {
             return;
         }
         File root = new File(app.getFilesDir(), ENGINE_JAR_DIR);
@@ -66,18 +86,25 @@ public class HackRuntime {
                     FileUtils.deleteQuietly(new File(workPath));
                 }
                 File sdk = new File(workspace, "base.apk");
+                Trace.beginSection("HackRuntime.extractEngine");
                 try {
+                    long start = SystemClock.elapsedRealtime();
                     FileUtils.extractAsset(app, ENGINE_JAR_NAME, sdk);
+                    long extracted = SystemClock.elapsedRealtime();
                     FileUtils.extractFile(sdk, "lib/", workspace);
+                    sJarExtractTime = extracted - start;
+                    sLibExtractTime = SystemClock.elapsedRealtime() - extracted;
                     object.putOpt("current", workspace.getPath());
                     object.putOpt("time", installTime);
                     FileUtils.writeString(config, object.toString());
                 } catch (Throwable e) {
                     throw new RuntimeException(e);
+                } finally {
+                    Trace.endSection();
                 }
             }
         }
-        loadEngine(workspace);
+        loadEngineAsync(workspace);
     }
 
     private static JSONObject readJson(File file) {
@@ -93,7 +120,30 @@ public class HackRuntime {
     }
 
 
-    private static void loadEngine(File root) {
+    private static void loadEngineAsync(final File root) {
+        FutureTask<DexClassLoader> loader = new FutureTask<>(new Callable<DexClassLoader>() {
+            @Override
+            public DexClassLoader call() throws Exception {
+                Trace.beginSection("HackRuntime.loadEngine");
+                try {
+                    long start = SystemClock.elapsedRealtime();
+                    DexClassLoader classLoader = loadEngine(root);
+                    // opens and verifies the dex and links the entry class, Cmd only looks up its method
+                    Class.forName(ENGINE_CMD_CLASS, false, classLoader);
+                    sEngineLoadTime = SystemClock.elapsedRealtime() - start;
+                    return classLoader;
+                } finally {
+                    Trace.endSection();
+                }
+            }
+        });
+        sEngineLoader = loader;
+        Thread thread = new Thread(loader, "hack-engine-loader");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    private static DexClassLoader loadEngine(File root) {
         File sdk = new File(root, "base.apk");
         File engineLibDir = new File(root, "lib");
         ArrayList<String> libDirs = new ArrayList<>();
@@ -122,11 +172,93 @@ public class HackRuntime {
         String libSearchDir = builder.toString();
 
 
-        hackClassLoader = new DexClassLoader(sdk.getPath(), sdk.getParent(), libSearchDir, Context.class.getClassLoader());
+        return new DexClassLoader(sdk.getPath(), sdk.getParent(), libSearchDir, Context.class.getClassLoader());
     }
 
+    /**
+     * barrier for the background load started by {@link #install}, null if none was started.
+     */
     public static DexClassLoader getHackClassLoader() {
-        return hackClassLoader;
+        DexClassLoader classLoader = hackClassLoader;
+        if (classLoader != null) {
+            return classLoader;
+        }
+        FutureTask<DexClassLoader> loader = sEngineLoader;
+        if (loader == null) {
+            return null;
+        }
+        synchronized (HackRuntime.class) {
+            if (hackClassLoader != null) {
+                return hackClassLoader;
+            }
+            Trace.beginSection("HackRuntime.awaitEngine");
+            long start = SystemClock.elapsedRealtime();
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        classLoader = loader.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } catch (ExecutionException e) {
+                throw new RuntimeException("engine load failed", e.getCause());
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                Trace.endSection();
+            }
+            sEngineWaitTime = SystemClock.elapsedRealtime() - start;
+            hackClassLoader = classLoader;
+            return classLoader;
+        }
+    }
+
+    /**
+     * records the end of {@link HackApplication#attachBaseContext} and logs the startup trace.
+     */
+    static void reportAttach(long startTime) {
+        sAttachTime = SystemClock.elapsedRealtime() - startTime;
+        Slog.i(TAG, "startup: attach %dms, engine extract jar %dms libs %dms, engine load %dms in background, waited %dms",
+                sAttachTime, sJarExtractTime, sLibExtractTime, sEngineLoadTime, sEngineWaitTime);
+    }
+
+    /**
+     * @return how long copying the engine jar out of the apk took, -1 if this start didn't extract it.
+     */
+    public static long getJarExtractTime() {
+        return sJarExtractTime;
+    }
+
+    /**
+     * @return how long unpacking the engine's native libraries took, -1 if this start didn't extract them.
+     */
+    public static long getLibExtractTime() {
+        return sLibExtractTime;
+    }
+
+    /**
+     * @return how long building the engine class loader took, -1 until it is done.
+     */
+    public static long getEngineLoadTime() {
+        return sEngineLoadTime;
+    }
+
+    /**
+     * @return how long the first engine call was blocked on the loader, -1 if it hasn't happened.
+     */
+    public static long getEngineWaitTime() {
+        return sEngineWaitTime;
+    }
+
+    /**
+     * @return how long attachBaseContext took including the engine's own attach, -1 until it returned.
+     */
+    public static long getAttachTime() {
+        return sAttachTime;
     }
 
     public static void setHackClassLoader(DexClassLoader classLoader) {
@@ -0,0 +1,259 @@
+package com.hack.opensdk;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import com.hack.Features;
+import com.hack.Slog;
+import com.hack.utils.IntentUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client side cache of package metadata queried from the engine, keyed by (userId, package, flags).
+ * Entries of a user are dropped when the engine reports an install or uninstall for that user,
+ * so the cache is only enabled once both observers are registered.
+ *
+ * Cached PackageInfo/ActivityInfo/ResolveInfo instances never leave the cache, callers get copies
+ * they are free to modify.
+ */
+public class PackageCache implements IPackageObserver.Install, IPackageObserver.Delete {
+    private static final boolean DEBUG = Features.DEBUG;
+    private static final String TAG = PackageCache.class.getSimpleName();
+
+    private static final int MAX_ENTRIES = 512;
+
+    static final int TYPE_PACKAGE_INFO = 1;
+    static final int TYPE_ACTIVITY_INFO = 2;
+    static final int TYPE_QUERY_ACTIVITIES = 3;
+    static final int TYPE_INSTALLED_PACKAGES = 4;
+
+    /**
+     * stands for a null result, the engine answers "not installed" far more often than anything else.
+     */
+    private static final Object NONE = new Object();
+
+    private final LruCache<Key, Object> mCache = new LruCache<>(MAX_ENTRIES);
+    private volatile boolean mEnabled;
+    private volatile boolean mObserving;
+    /**
+     * bumped on every invalidation, a query that raced with one must not be stored.
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    /**
+     * makes the generation check and the store of {@link #put} atomic with respect to invalidation.
+     */
+    private final Object mLock = new Object();
+
+    PackageCache() {
+    }
+
+    @Override
+    public void onPackageInstalled(String basePackageName, int returnCode, String msg, Bundle extras, int userId) {
+        invalidate(userId, basePackageName);
+    }
+
+    @Override
+    public void onPackageDeleted(String packageName, int returnCode, String msg, int userId) {
+        invalidate(userId, packageName);
+    }
+
+    /**
+     * registers the install/delete observers once, the cache stays disabled if the engine refuses them.
+     */
+    void ensureObserving() {
+        if (mObserving) {
+            return;
+        }
+        synchronized (this) {
+            if (mObserving) {
+                return;
+            }
+            mObserving = true;
+            try {
+                HackApi.registerInstallObserver(this);
+                HackApi.registerDeleteObserver(this);
+                mEnabled = true;
+            } catch (Throwable e) {
+                Slog.w(TAG, "package observers unavailable, cache disabled: " + e);
+            }
+        }
+    }
+
+    static Key key(int type, int userId, String pkg, int flags, Object extra) {
+        return new Key(type, userId, pkg, flags, extra);
+    }
+
+    /**
+     * @return null if the intent can't be cached.
+     */
+    static Key queryKey(Intent intent, String resolvedType, int flags, int userId) {
+        if (intent == null) {
+            return null;
+        }
+        // only the filter part of the intent takes part in resolution, and the caller may mutate it later.
+        Intent.FilterComparison filter = new Intent.FilterComparison(intent.cloneFilter());
+        return new Key(TYPE_QUERY_ACTIVITIES, userId, IntentUtils.getPackage(intent), flags,
+                resolvedType == null ? filter : new Object[]{filter, resolvedType});
+    }
+
+    static Key activityKey(ComponentName component, int flags, int userId) {
+        return new Key(TYPE_ACTIVITY_INFO, userId, component.getPackageName(), flags, component);
+    }
+
+    /**
+     * @return the cached value, {@link #NONE} for a cached null, or null on a miss.
+     */
+    Object get(Key key) {
+        if (!mEnabled || key == null) {
+            return null;
+        }
+        return mCache.get(key);
+    }
+
+    int generation() {
+        return mGeneration.get();
+    }
+
+    void put(Key key, Object value, int generation) {
+        if (!mEnabled || key == null) {
+            return;
+        }
+        synchronized (mLock) {
+            if (generation != mGeneration.get()) {
+                return;
+            }
+            mCache.put(key, value == null ? NONE : value);
+        }
+    }
+
+    static boolean isNone(Object value) {
+        return value == NONE;
+    }
+
+    static <T> List<T> copyOf(List<T> list) {
+        return list == null ? null : new ArrayList<>(list);
+    }
+
+    /**
+     * deep copy through a parcel, the way the value would have come from the engine.
+     */
+    static <T extends Parcelable> T copyOf(T value, Parcelable.Creator<T> creator) {
+        if (value == null) {
+            return null;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            value.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return creator.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    static <T extends Parcelable> List<T> copyOf(List<T> list, Parcelable.Creator<T> creator) {
+        if (list == null) {
+            return null;
+        }
+        ArrayList<T> copy = new ArrayList<>(list.size());
+        for (T value : list) {
+            copy.add(copyOf(value, creator));
+        }
+        return copy;
+    }
+
+    /**
+     * drops everything cached for the package in this user, as well as the lists that may contain it.
+     */
+    public void invalidate(int userId, String packageName) {
+        if (DEBUG) Slog.d(TAG, "invalidate %d %s", userId, packageName);
+        synchronized (mLock) {
+            mGeneration.incrementAndGet();
+            Map<Key, Object> snapshot = mCache.snapshot();
+            for (Key key : snapshot.keySet()) {
+                if (key.userId != userId) {
+                    continue;
+                }
+                if (key.pkg == null || packageName == null || TextUtils.equals(key.pkg, packageName)) {
+                    mCache.remove(key);
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (mLock) {
+            mGeneration.incrementAndGet();
+            mCache.evictAll();
+        }
+    }
+
+    public int hitCount() {
+        return mCache.hitCount();
+    }
+
+    public int missCount() {
+        return mCache.missCount();
+    }
+
+    public int size() {
+        return mCache.size();
+    }
+
+    @Override
+    public String toString() {
+        return "PackageCache{enabled=" + mEnabled + ", size=" + size()
+                + ", hit=" + hitCount() + ", miss=" + missCount() + "}";
+    }
+
+    static final class Key {
+        final int type;
+        final int userId;
+        final String pkg;
+        final int flags;
+        final Object extra;
+        private final int hash;
+
+        Key(int type, int userId, String pkg, int flags, Object extra) {
+            this.type = type;
+            this.userId = userId;
+            this.pkg = pkg;
+            this.flags = flags;
+            this.extra = extra;
+            int h = type;
+            h = 31 * h + userId;
+            h = 31 * h + (pkg != null ? pkg.hashCode() : 0);
+            h = 31 * h + flags;
+            h = 31 * h + (extra instanceof Object[] ? Arrays.hashCode((Object[]) extra) : Objects.hashCode(extra));
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            if (type != other.type || userId != other.userId || flags != other.flags
+                    || !TextUtils.equals(pkg, other.pkg)) {
+                return false;
+            }
+            return Objects.deepEquals(extra, other.extra);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
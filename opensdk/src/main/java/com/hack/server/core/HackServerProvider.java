@@ -32,10 +32,10 @@ public class HackServerProvider extends ProviderBase {
 
     @Override
     public boolean onCreate() {
-        ThreadUtils.postOnBackgroundThread(()->{
+        ThreadUtils.getLatencyCriticalExecutor().execute(()->{
             getContext().startService(new Intent(getContext(), ForgroundService.class));
         });
-        return (boolean) Cmd.INSTANCE().exec(CmdConstants.CMD_CORE_PROVIDER_CREATE, getContext());
+        return Cmd.INSTANCE().execBoolean(CmdConstants.CMD_CORE_PROVIDER_CREATE, getContext());
     }
 
     @Override
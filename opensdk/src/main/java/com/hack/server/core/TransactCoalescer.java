@@ -0,0 +1,177 @@
+package com.hack.server.core;
+
+import static com.hack.opensdk.CmdConstants.TRANSACT_KEY_BATCH;
+import static com.hack.opensdk.CmdConstants.TRANSACT_KEY_CMD;
+import static com.hack.opensdk.CmdConstants.TRANSACT_KEY_ERROR;
+import static com.hack.opensdk.CmdConstants.TRANSACT_PROVIDER_METHOD;
+import static com.hack.opensdk.CmdConstants.TRANSACT_PROVIDER_METHOD_BATCH;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.hack.Features;
+import com.hack.Slog;
+
+import java.util.ArrayList;
+
+/**
+ * Client side of the transact channel for agent processes. Commands whose result is not needed
+ * are queued by {@link #post} and sent to {@link TransactProvider} as one batch once the flush
+ * delay has passed or the batch is full, so a burst of process-bind/acquire-provider calls during
+ * a guest cold start costs a single binder call. {@link #transact} sends immediately, after
+ * whatever is still queued, so commands always reach the host in the order they were issued.
+ *
+ * Falls back to one call per command if the host does not know the batch method.
+ */
+public class TransactCoalescer {
+    private static final boolean DEBUG = Features.DEBUG;
+    private static final String TAG = TransactCoalescer.class.getSimpleName();
+
+    public static final long DEFAULT_FLUSH_DELAY_MS = 10;
+    private static final int MAX_BATCH_SIZE = 32;
+
+    private static Handler sFlushHandler;
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final long mFlushDelay;
+    private final Handler mHandler;
+    private final Object mLock = new Object();
+    // held from taking a batch until it is sent, so nothing overtakes a batch in flight
+    private final Object mSendLock = new Object();
+    private ArrayList<Bundle> mPending = new ArrayList<>();
+    private volatile boolean mBatchSupported = true;
+    // the host answered a batch once, so a later null reply is a transport failure
+    private volatile boolean mBatchAnswered;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public TransactCoalescer(Context context, String authority) {
+        this(context, authority, DEFAULT_FLUSH_DELAY_MS);
+    }
+
+    public TransactCoalescer(Context context, String authority, long flushDelayMs) {
+        mResolver = context.getContentResolver();
+        mUri = Uri.parse("content://" + authority);
+        mFlushDelay = flushDelayMs;
+        mHandler = getFlushHandler();
+    }
+
+    private static synchronized Handler getFlushHandler() {
+        if (sFlushHandler == null) {
+            HandlerThread thread = new HandlerThread("transact-flush");
+            thread.start();
+            sFlushHandler = new Handler(thread.getLooper());
+        }
+        return sFlushHandler;
+    }
+
+    /**
+     * queues a command, its result is dropped.
+     */
+    public void post(int cmd, Bundle extras) {
+        Bundle command = extras != null ? extras : new Bundle();
+        command.putInt(TRANSACT_KEY_CMD, cmd);
+        synchronized (mLock) {
+            mPending.add(command);
+            int size = mPending.size();
+            if (size >= MAX_BATCH_SIZE) {
+                mHandler.removeCallbacks(mFlush);
+                mHandler.post(mFlush);
+            } else if (size == 1) {
+                mHandler.postDelayed(mFlush, mFlushDelay);
+            }
+        }
+    }
+
+    /**
+     * sends the command right away, after the queued ones.
+     */
+    public Bundle transact(int cmd, Bundle extras) {
+        Bundle command = extras != null ? extras : new Bundle();
+        command.putInt(TRANSACT_KEY_CMD, cmd);
+        synchronized (mSendLock) {
+            flush();
+            return call(TRANSACT_PROVIDER_METHOD, command);
+        }
+    }
+
+    public void flush() {
+        synchronized (mSendLock) {
+            ArrayList<Bundle> batch;
+            synchronized (mLock) {
+                mHandler.removeCallbacks(mFlush);
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                batch = mPending;
+                mPending = new ArrayList<>();
+            }
+            send(batch);
+        }
+    }
+
+    private void send(ArrayList<Bundle> batch) {
+        if (batch.size() > 1 && mBatchSupported) {
+            Bundle extras = new Bundle();
+            extras.putParcelableArrayList(TRANSACT_KEY_BATCH, batch);
+            if (DEBUG) Slog.d(TAG, "flush %d commands", batch.size());
+            Bundle reply;
+            try {
+                reply = mResolver.call(mUri, TRANSACT_PROVIDER_METHOD_BATCH, null, extras);
+            } catch (RuntimeException e) {
+                // thrown by the host while running the batch, some commands may have run already
+                // and must not run twice
+                Slog.w(TAG, "batch transact failed, " + batch.size() + " commands not retried: " + e);
+                return;
+            }
+            if (reply != null) {
+                mBatchAnswered = true;
+                logErrors(reply);
+                return;
+            }
+            // null means nothing ran: an older host doesn't know the method, or the batch never
+            // got there (ContentResolver swallows the RemoteException, e.g. a transaction too large)
+            if (!mBatchAnswered) {
+                Slog.w(TAG, "batch transact unsupported, falling back");
+                mBatchSupported = false;
+            } else {
+                Slog.w(TAG, "batch transact not delivered, sending one by one");
+            }
+        }
+        for (Bundle command : batch) {
+            call(TRANSACT_PROVIDER_METHOD, command);
+        }
+    }
+
+    private static void logErrors(Bundle reply) {
+        ArrayList<Bundle> results = reply.getParcelableArrayList(TRANSACT_KEY_BATCH);
+        if (results == null) {
+            return;
+        }
+        for (Bundle result : results) {
+            String error = result != null ? result.getString(TRANSACT_KEY_ERROR) : null;
+            if (error != null) {
+                Slog.w(TAG, "batched transact failed: " + error);
+            }
+        }
+    }
+
+    private Bundle call(String method, Bundle extras) {
+        try {
+            return mResolver.call(mUri, method, null, extras);
+        } catch (RuntimeException e) {
+            Slog.w(TAG, "transact failed: " + e);
+            return null;
+        }
+    }
+}
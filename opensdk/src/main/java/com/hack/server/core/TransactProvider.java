@@ -2,10 +2,13 @@ package com.hack.server.core;
 
 import static com.hack.opensdk.CmdConstants.TRANSACT_CMD_ACQUIRE_PROVIDER;
 import static com.hack.opensdk.CmdConstants.TRANSACT_CMD_OUTER_INTENT;
+import static com.hack.opensdk.CmdConstants.TRANSACT_KEY_BATCH;
 import static com.hack.opensdk.CmdConstants.TRANSACT_KEY_AUTHORITY;
 import static com.hack.opensdk.CmdConstants.TRANSACT_KEY_CMD;
+import static com.hack.opensdk.CmdConstants.TRANSACT_KEY_ERROR;
 import static com.hack.opensdk.CmdConstants.TRANSACT_KEY_INTENT;
 import static com.hack.opensdk.CmdConstants.TRANSACT_PROVIDER_METHOD;
+import static com.hack.opensdk.CmdConstants.TRANSACT_PROVIDER_METHOD_BATCH;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
@@ -20,6 +23,10 @@ import com.hack.Slog;
 import com.hack.opensdk.HackApi;
 import com.hack.utils.IntentUtils;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
 public class TransactProvider extends ContentProvider {
     private static final String TAG = TransactProvider.class.getSimpleName();
 
@@ -63,17 +70,50 @@ public class TransactProvider extends ContentProvider {
         }
         if (TextUtils.equals(method, TRANSACT_PROVIDER_METHOD)) {
             extras.setClassLoader(TransactProvider.class.getClassLoader());
-            int cmd = extras.getInt(TRANSACT_KEY_CMD);
-
-            if (cmd == TRANSACT_CMD_ACQUIRE_PROVIDER) {
-                Uri uri = extras.getParcelable(TRANSACT_KEY_AUTHORITY);
-                getContext().getContentResolver().acquireUnstableContentProviderClient(uri);
+            return transact(extras);
+        } else if (TextUtils.equals(method, TRANSACT_PROVIDER_METHOD_BATCH)) {
+            extras.setClassLoader(TransactProvider.class.getClassLoader());
+            ArrayList<Bundle> commands = extras.getParcelableArrayList(TRANSACT_KEY_BATCH);
+            if (commands == null) {
                 return null;
-            } else if (Features.DEBUG && cmd == TRANSACT_CMD_OUTER_INTENT) {
-                Slog.d(TAG, "---->" + IntentUtils.toShortString((Intent) extras.getParcelable(TRANSACT_KEY_INTENT)));
             }
-            return HackApi.getTransactRegistry().transact(getContext(), cmd, extras);
+            // run in order, a later command may depend on an earlier one, e.g. bind before acquire.
+            // a failing command must not abort the reply: the caller can't tell which commands ran
+            // and must not send any of them again
+            ArrayList<Bundle> results = new ArrayList<>(commands.size());
+            for (Bundle command : commands) {
+                command.setClassLoader(TransactProvider.class.getClassLoader());
+                try {
+                    results.add(transact(command));
+                } catch (RuntimeException e) {
+                    Slog.w(TAG, "batched transact %d failed: %s", command.getInt(TRANSACT_KEY_CMD), e);
+                    Bundle error = new Bundle();
+                    error.putString(TRANSACT_KEY_ERROR, e.toString());
+                    results.add(error);
+                }
+            }
+            Bundle reply = new Bundle();
+            reply.putParcelableArrayList(TRANSACT_KEY_BATCH, results);
+            return reply;
         }
         return null;
     }
+
+    private Bundle transact(Bundle extras) {
+        int cmd = extras.getInt(TRANSACT_KEY_CMD);
+
+        if (cmd == TRANSACT_CMD_ACQUIRE_PROVIDER) {
+            Uri uri = extras.getParcelable(TRANSACT_KEY_AUTHORITY);
+            getContext().getContentResolver().acquireUnstableContentProviderClient(uri);
+            return null;
+        } else if (Features.DEBUG && cmd == TRANSACT_CMD_OUTER_INTENT) {
+            Slog.d(TAG, "---->" + IntentUtils.toShortString((Intent) extras.getParcelable(TRANSACT_KEY_INTENT)));
+        }
+        return HackApi.getTransactRegistry().transact(getContext(), cmd, extras);
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        HackApi.getTransactRegistry().dump(writer);
+    }
 }
@@ -2,36 +2,172 @@ package com.hack.server.core;
 
 import android.content.Context;
 import android.os.Bundle;
-import android.util.SparseArray;
 
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * cmd -> callback table for the transact channel. transact runs on any binder thread, so the
+ * table is copy-on-write: registrations swap in a new copy under a lock, lookups read the
+ * current copy without locking. A published {@link Table} is never modified.
+ */
 public class TransactRegistry implements TransactCallback {
-    private final SparseArray<TransactCallback> transactCallbacks = new SparseArray<>();
+    /**
+     * latency buckets, bucket i holds calls of [2^(i-1), 2^i) microseconds, the last one everything slower.
+     */
+    private static final int LATENCY_BUCKETS = 22;
+
+    private final Object mLock = new Object();
+    private volatile Table mTable = Table.EMPTY;
+    private final AtomicLong mUnhandled = new AtomicLong();
 
     public TransactRegistry() {
     }
 
     public final void registerTransactCallback(int cmd, TransactCallback callback) {
-        synchronized (transactCallbacks) {
-            transactCallbacks.put(cmd, callback);
+        synchronized (mLock) {
+            Table table = mTable;
+            int index = Arrays.binarySearch(table.keys, cmd);
+            if (index >= 0) {
+                // keep the counters of a cmd across re-registration
+                Entry[] entries = table.entries.clone();
+                entries[index] = new Entry(callback, entries[index].stats);
+                mTable = new Table(table.keys, entries);
+                return;
+            }
+            int insert = -index - 1;
+            int size = table.keys.length;
+            int[] keys = new int[size + 1];
+            Entry[] entries = new Entry[size + 1];
+            System.arraycopy(table.keys, 0, keys, 0, insert);
+            System.arraycopy(table.entries, 0, entries, 0, insert);
+            keys[insert] = cmd;
+            entries[insert] = new Entry(callback, new Stats());
+            System.arraycopy(table.keys, insert, keys, insert + 1, size - insert);
+            System.arraycopy(table.entries, insert, entries, insert + 1, size - insert);
+            mTable = new Table(keys, entries);
         }
     }
 
     public final void unregisterTransactCallback(int cmd) {
-        synchronized (transactCallbacks) {
-            transactCallbacks.remove(cmd);
+        synchronized (mLock) {
+            Table table = mTable;
+            int index = Arrays.binarySearch(table.keys, cmd);
+            if (index < 0) {
+                return;
+            }
+            int size = table.keys.length - 1;
+            int[] keys = new int[size];
+            Entry[] entries = new Entry[size];
+            System.arraycopy(table.keys, 0, keys, 0, index);
+            System.arraycopy(table.entries, 0, entries, 0, index);
+            System.arraycopy(table.keys, index + 1, keys, index, size - index);
+            System.arraycopy(table.entries, index + 1, entries, index, size - index);
+            mTable = new Table(keys, entries);
         }
-
     }
 
     @Override
     public Bundle transact(Context context, int cmd, Bundle extra) {
-        TransactCallback callback;
-        synchronized (transactCallbacks) {
-            callback = transactCallbacks.get(cmd);
+        Entry entry = mTable.get(cmd);
+        if (entry == null) {
+            mUnhandled.incrementAndGet();
+            return null;
+        }
+        long start = System.nanoTime();
+        try {
+            return entry.callback.transact(context, cmd, extra);
+        } finally {
+            entry.stats.record(System.nanoTime() - start);
         }
-        if (callback != null) {
-            return callback.transact(context, cmd, extra);
+    }
+
+    /**
+     * @return calls dispatched to the cmd since it was first registered.
+     */
+    public long getCallCount(int cmd) {
+        Entry entry = mTable.get(cmd);
+        return entry != null ? entry.stats.count.get() : 0;
+    }
+
+    public void dump(PrintWriter writer) {
+        Table table = mTable;
+        writer.println("TransactRegistry: " + table.keys.length + " cmds, unhandled " + mUnhandled.get());
+        for (int i = 0; i < table.keys.length; i++) {
+            writer.print("  cmd ");
+            writer.print(table.keys[i]);
+            writer.print(": ");
+            table.entries[i].stats.dump(writer);
+        }
+    }
+
+    /**
+     * immutable snapshot, cmds sorted ascending with the entries in the same order.
+     */
+    private static final class Table {
+        static final Table EMPTY = new Table(new int[0], new Entry[0]);
+
+        final int[] keys;
+        final Entry[] entries;
+
+        Table(int[] keys, Entry[] entries) {
+            this.keys = keys;
+            this.entries = entries;
+        }
+
+        Entry get(int cmd) {
+            int index = Arrays.binarySearch(keys, cmd);
+            return index >= 0 ? entries[index] : null;
+        }
+    }
+
+    private static final class Entry {
+        final TransactCallback callback;
+        final Stats stats;
+
+        Entry(TransactCallback callback, Stats stats) {
+            this.callback = callback;
+            this.stats = stats;
+        }
+    }
+
+    private static final class Stats {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLongArray latency = new AtomicLongArray(LATENCY_BUCKETS);
+
+        void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long micros = nanos / 1000;
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            latency.incrementAndGet(Math.min(bucket, LATENCY_BUCKETS - 1));
+        }
+
+        void dump(PrintWriter writer) {
+            long calls = count.get();
+            writer.print("calls=" + calls);
+            if (calls > 0) {
+                writer.print(" avg=" + totalNanos.get() / calls / 1000 + "us");
+            }
+            writer.print(" latency(us)=[");
+            boolean first = true;
+            for (int i = 0; i < LATENCY_BUCKETS; i++) {
+                long n = latency.get(i);
+                if (n == 0) {
+                    continue;
+                }
+                if (!first) {
+                    writer.print(", ");
+                }
+                first = false;
+                writer.print(i == LATENCY_BUCKETS - 1 ? ">=" + (1L << (i - 1)) : "<" + (1L << i));
+                writer.print(':');
+                writer.print(n);
+            }
+            writer.println("]");
         }
-        return null;
     }
 }
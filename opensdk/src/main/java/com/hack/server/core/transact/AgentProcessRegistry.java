@@ -0,0 +1,133 @@
+package com.hack.server.core.transact;
+
+import android.os.Process;
+
+import com.hack.Features;
+import com.hack.Slog;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Agent processes that reported a bind to this host process, keyed by pid.
+ * Filled by {@link ProcessBindCallback}, so stopping every guest only has to look at the agents
+ * instead of scanning all running processes.
+ */
+public class AgentProcessRegistry {
+    private static final boolean DEBUG = Features.DEBUG;
+    private static final String TAG = AgentProcessRegistry.class.getSimpleName();
+
+    // starttime is field 22 of /proc/pid/stat, counted here from field 3, the one after comm
+    private static final int STAT_START_TIME = 22 - 3;
+
+    private static final AgentProcessRegistry sInstance = new AgentProcessRegistry();
+
+    private final Map<Integer, Agent> mAgents = new ConcurrentHashMap<>();
+
+    public static AgentProcessRegistry getInstance() {
+        return sInstance;
+    }
+
+    private AgentProcessRegistry() {
+    }
+
+    void onBind(int pid, String process, String pkg, int space) {
+        if (pid <= 0 || pid == Process.myPid()) {
+            return;
+        }
+        mAgents.put(pid, new Agent(pid, process, pkg, space, readStartTime(pid)));
+    }
+
+    /**
+     * @return the agents still alive, dead ones are dropped on the way.
+     */
+    public List<Agent> getAgents() {
+        List<Agent> agents = new ArrayList<>(mAgents.size());
+        for (Agent agent : mAgents.values()) {
+            if (agent.isAlive()) {
+                agents.add(agent);
+            } else {
+                mAgents.remove(agent.pid);
+            }
+        }
+        return agents;
+    }
+
+    /**
+     * kills every registered agent whose pid still runs the process that registered.
+     *
+     * @return the number of processes killed.
+     */
+    public int killAll() {
+        int killed = 0;
+        for (Agent agent : getAgents()) {
+            mAgents.remove(agent.pid);
+            // the pid may have been reused since the agent died
+            if (agent.startTime < 0 || agent.startTime != readStartTime(agent.pid)) {
+                continue;
+            }
+            if (DEBUG) Slog.d(TAG, "kill agent %s", agent);
+            Process.killProcess(agent.pid);
+            killed++;
+        }
+        return killed;
+    }
+
+    /**
+     * @return the start time of the process from /proc/pid/stat, in clock ticks since boot, -1 if it is gone.
+     */
+    private static long readStartTime(int pid) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/" + pid + "/stat"));
+            String stat = reader.readLine();
+            // the comm field may contain spaces, count from the closing parenthesis
+            int commEnd = stat != null ? stat.lastIndexOf(')') : -1;
+            if (commEnd < 0) {
+                return -1;
+            }
+            String[] fields = stat.substring(commEnd + 2).split(" ");
+            return fields.length > STAT_START_TIME ? Long.parseLong(fields[STAT_START_TIME]) : -1;
+        } catch (Exception e) {
+            return -1;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    public static class Agent {
+        public final int pid;
+        public final String process;
+        public final String pkg;
+        public final int space;
+        final long startTime;
+
+        Agent(int pid, String process, String pkg, int space, long startTime) {
+            this.pid = pid;
+            this.process = process;
+            this.pkg = pkg;
+            this.space = space;
+            this.startTime = startTime;
+        }
+
+        boolean isAlive() {
+            return new File("/proc/" + pid).exists();
+        }
+
+        @Override
+        public String toString() {
+            return "Agent{pid=" + pid + ", process=" + process + ", pkg=" + pkg + ", space=" + space + "}";
+        }
+    }
+}
@@ -5,6 +5,7 @@ import static com.hack.opensdk.CmdConstants.TRANSACT_KEY_PROCESS;
 import static com.hack.opensdk.CmdConstants.TRANSACT_KEY_SPACE;
 
 import android.content.Context;
+import android.os.Binder;
 import android.os.Bundle;
 import android.util.Log;
 
@@ -20,6 +21,7 @@ public class ProcessBindCallback implements TransactCallback {
         int space = extras.getInt(TRANSACT_KEY_SPACE);
         String pkg = extras.getString(TRANSACT_KEY_PKG);
         String process = extras.getString(TRANSACT_KEY_PROCESS);
+        AgentProcessRegistry.getInstance().onBind(Binder.getCallingPid(), process, pkg, space);
         onBindProcess(process, pkg, space);
         return null;
     }
@@ -1,122 +1,234 @@
 package com.hack.utils;
 
+import com.hack.Slog;
+
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Process-wide exclusive lock on the "lock" file next to a target file, e.g. to keep two processes
+ * from optimizing the same dex at once.
+ *
+ * Threads of this process wait on the lock file's holder first, so only the thread holding it ever
+ * touches the OS lock, and the OS lock is taken once and held until the outermost unLock. The
+ * holder may take the lock again. Like the OS lock it is held per file, not per thread: an unLock
+ * from another thread releases one level of the holder's hold. Each lock file keeps a single
+ * channel open for the life of the process.
+ */
 public class FileLock {
-    private static FileLock singleton;
-    private Map<String, FileLockCount> mRefCountMap = new ConcurrentHashMap<String, FileLockCount>();
+    private static final String TAG = FileLock.class.getSimpleName();
+
+    private static final long OS_LOCK_POLL_MS = 5;
+
+    private static final FileLock singleton = new FileLock();
+
+    private final Map<String, Holder> mHolders = new ConcurrentHashMap<>();
+
+    private final AtomicLong mAcquired = new AtomicLong();
+    private final AtomicLong mTimeouts = new AtomicLong();
+    private final AtomicLong mWaitNanos = new AtomicLong();
+    private final AtomicLong mMaxWaitNanos = new AtomicLong();
 
     public static FileLock getInstance() {
-        if (singleton == null) {
-            singleton = new FileLock();
-        }
         return singleton;
     }
 
-    private int RefCntInc(String filePath, java.nio.channels.FileLock fileLock, RandomAccessFile randomAccessFile,
-                          FileChannel fileChannel) {
-        int refCount;
-        if (this.mRefCountMap.containsKey(filePath)) {
-            FileLockCount fileLockCount = this.mRefCountMap.get(filePath);
-            int i = fileLockCount.mRefCount;
-            fileLockCount.mRefCount = i + 1;
-            refCount = i;
-        } else {
-            refCount = 1;
-            this.mRefCountMap.put(filePath, new FileLockCount(fileLock, refCount, randomAccessFile, fileChannel));
+    private FileLock() {
+    }
 
-        }
-        return refCount;
+    /**
+     * blocks until the lock of the target file's directory is held by this thread.
+     */
+    public boolean LockExclusive(File targetFile) {
+        return lock(targetFile, -1);
     }
 
-    private int RefCntDec(String filePath) {
-        int refCount = 0;
-        if (this.mRefCountMap.containsKey(filePath)) {
-            FileLockCount fileLockCount = this.mRefCountMap.get(filePath);
-            int i = fileLockCount.mRefCount - 1;
-            fileLockCount.mRefCount = i;
-            refCount = i;
-            if (refCount <= 0) {
-                this.mRefCountMap.remove(filePath);
-            }
-        }
-        return refCount;
+    /**
+     * @return false if the lock could not be taken within the timeout.
+     */
+    public boolean tryLock(File targetFile, long timeout, TimeUnit unit) {
+        return lock(targetFile, Math.max(unit.toNanos(timeout), 0));
     }
 
-    public boolean LockExclusive(File targetFile) {
+    /**
+     * unlock odex file
+     **/
+    public void unLock(File targetFile) {
+        if (targetFile == null) {
+            return;
+        }
+        String path = getLockPath(targetFile);
+        Holder holder = mHolders.get(path);
+        if (holder == null || !holder.release()) {
+            Slog.w(TAG, "unLock without holding the lock: %s", path);
+        }
+    }
 
+    /**
+     * @param timeoutNanos negative to wait forever.
+     */
+    private boolean lock(File targetFile, long timeoutNanos) {
         if (targetFile == null) {
             return false;
         }
-        try {
-            File lockFile = new File(targetFile.getParentFile().getAbsolutePath().concat("/lock"));
-            if (!lockFile.exists()) {
-                lockFile.createNewFile();
+        String path = getLockPath(targetFile);
+        Holder holder = mHolders.get(path);
+        if (holder == null) {
+            Holder created = new Holder(path);
+            holder = mHolders.putIfAbsent(path, created);
+            if (holder == null) {
+                holder = created;
             }
-            RandomAccessFile randomAccessFile = new RandomAccessFile(lockFile.getAbsolutePath(), "rw");
-            FileChannel channel = randomAccessFile.getChannel();
-            java.nio.channels.FileLock lock = channel.lock();
-            if (!lock.isValid()) {
+        }
+        long start = System.nanoTime();
+        try {
+            if (!holder.acquire(timeoutNanos)) {
+                mTimeouts.incrementAndGet();
                 return false;
             }
-            RefCntInc(lockFile.getAbsolutePath(), lock, randomAccessFile, channel);
-            return true;
-        } catch (Exception e) {
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return false;
         }
+        recordWait(System.nanoTime() - start);
+        return true;
     }
 
-    /**
-     * unlock odex file
-     **/
-    public void unLock(File targetFile) {
+    private static java.nio.channels.FileLock acquireOsLock(FileChannel channel, long timeoutNanos)
+            throws IOException, InterruptedException {
+        if (timeoutNanos < 0) {
+            return channel.lock();
+        }
+        // FileChannel has no timed lock, poll instead
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (true) {
+            java.nio.channels.FileLock lock = channel.tryLock();
+            if (lock != null) {
+                return lock;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            Thread.sleep(Math.min(OS_LOCK_POLL_MS, TimeUnit.NANOSECONDS.toMillis(remaining) + 1));
+        }
+    }
 
-        File lockFile = new File(targetFile.getParentFile().getAbsolutePath().concat("/lock"));
-        if (!lockFile.exists()) {
-            return;
+    private void recordWait(long nanos) {
+        mAcquired.incrementAndGet();
+        mWaitNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = mMaxWaitNanos.get())) {
+            if (mMaxWaitNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    private static String getLockPath(File targetFile) {
+        return targetFile.getParentFile().getAbsolutePath().concat("/lock");
+    }
+
+    public void dump(PrintWriter writer) {
+        long acquired = mAcquired.get();
+        writer.println("FileLock: files=" + mHolders.size() + " acquired=" + acquired
+                + " timeouts=" + mTimeouts.get()
+                + (acquired > 0 ? " wait avg=" + mWaitNanos.get() / acquired / 1000 + "us" : "")
+                + " max=" + mMaxWaitNanos.get() / 1000 + "us");
+    }
+
+    private static class Holder {
+        final String path;
+        RandomAccessFile file;
+        java.nio.channels.FileLock lock;
+        // guarded by this; the owner is set while it takes the OS lock, count once it has it
+        Thread owner;
+        int count;
+
+        Holder(String path) {
+            this.path = path;
         }
-        if (this.mRefCountMap.containsKey(lockFile.getAbsolutePath())) {
-            FileLockCount fileLockCount = this.mRefCountMap.get(lockFile.getAbsolutePath());
-            if (fileLockCount != null) {
-                java.nio.channels.FileLock fileLock = fileLockCount.mFileLock;
-                RandomAccessFile randomAccessFile = fileLockCount.fOs;
-                FileChannel fileChannel = fileLockCount.fChannel;
-                try {
-                    if (RefCntDec(lockFile.getAbsolutePath()) <= 0) {
-                        if (fileLock != null && fileLock.isValid()) {
-                            fileLock.release();
-                        }
-                        if (randomAccessFile != null) {
-                            randomAccessFile.close();
-                        }
-                        if (fileChannel != null) {
-                            fileChannel.close();
-                        }
+
+        /**
+         * @return false on timeout.
+         */
+        boolean acquire(long timeoutNanos) throws IOException, InterruptedException {
+            Thread current = Thread.currentThread();
+            long deadline = System.nanoTime() + timeoutNanos;
+            synchronized (this) {
+                while (owner != null && owner != current) {
+                    if (timeoutNanos < 0) {
+                        wait();
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+                if (count > 0) {
+                    count++;
+                    return true;
+                }
+                owner = current;
+            }
+            // the OS lock may take long, waiters see the owner and keep waiting meanwhile
+            java.nio.channels.FileLock osLock = null;
+            try {
+                long remaining = timeoutNanos < 0 ? -1 : Math.max(deadline - System.nanoTime(), 0);
+                osLock = acquireOsLock(getChannel(), remaining);
+                return osLock != null;
+            } finally {
+                synchronized (this) {
+                    if (osLock != null) {
+                        lock = osLock;
+                        count = 1;
+                    } else {
+                        owner = null;
+                        notifyAll();
                     }
-                } catch (IOException e) {
-                    e.printStackTrace();
                 }
             }
         }
-    }
 
-    private class FileLockCount {
-        FileChannel fChannel;
-        RandomAccessFile fOs;
-        java.nio.channels.FileLock mFileLock;
-        int mRefCount;
-
-        FileLockCount(java.nio.channels.FileLock fileLock, int mRefCount, RandomAccessFile fOs,
-                      FileChannel fChannel) {
-            this.mFileLock = fileLock;
-            this.mRefCount = mRefCount;
-            this.fOs = fOs;
-            this.fChannel = fChannel;
+        /**
+         * @return false if the lock wasn't held.
+         */
+        synchronized boolean release() {
+            if (count == 0) {
+                return false;
+            }
+            if (--count > 0) {
+                return true;
+            }
+            try {
+                lock.release();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            lock = null;
+            owner = null;
+            notifyAll();
+            return true;
+        }
+
+        FileChannel getChannel() throws IOException {
+            // an interrupted lock() closes the channel, reopen it then
+            if (file == null || !file.getChannel().isOpen()) {
+                file = new RandomAccessFile(path, "rw");
+            }
+            return file.getChannel();
         }
     }
 }
@@ -1,6 +1,7 @@
 package com.hack.utils;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 
 import com.hack.Features;
 import com.hack.Slog;
@@ -15,15 +16,26 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 public class FileUtils {
     private static final boolean DEBUG = Features.DEBUG;
     private static final int FILE_BYTE_BUFFER = 4096;
+    private static final int EXTRACT_BUFFER = 64 * 1024;
+    private static final int EXTRACT_MAX_THREAD = 4;
     private static final String TAG = FileUtils.class.getSimpleName();
 
     public static int copy(InputStream in, OutputStream out) throws IOException {
@@ -38,9 +50,13 @@ public class FileUtils {
     }
 
     public static int copyAndClose(InputStream in, OutputStream out) throws IOException {
+        return copyAndClose(in, out, FILE_BYTE_BUFFER);
+    }
+
+    public static int copyAndClose(InputStream in, OutputStream out, int bufferSize) throws IOException {
         try {
             int total = 0;
-            byte[] buffer = new byte[FILE_BYTE_BUFFER];
+            byte[] buffer = new byte[bufferSize];
             int c;
             while ((c = in.read(buffer)) != -1) {
                 total += c;
@@ -66,15 +82,49 @@ public class FileUtils {
 
     public static void extractAsset(Context context, String name, File target) throws IOException {
         target.getParentFile().mkdirs();
-        copyAndClose(context.getAssets().open(name), new FileOutputStream(target));
+        AssetFileDescriptor afd = null;
+        try {
+            // stored (uncompressed) assets can be copied straight out of the apk by the kernel
+            afd = context.getAssets().openFd(name);
+        } catch (IOException e) {
+            if (DEBUG) Slog.d(TAG, "asset %s is compressed, streaming it", name);
+        }
+        if (afd == null) {
+            copyAndClose(context.getAssets().open(name), new FileOutputStream(target), EXTRACT_BUFFER);
+            return;
+        }
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = afd.createInputStream();
+            out = new FileOutputStream(target);
+            FileChannel src = in.getChannel();
+            FileChannel dst = out.getChannel();
+            long start = afd.getStartOffset();
+            long length = afd.getLength();
+            long done = 0;
+            while (done < length) {
+                long n = src.transferTo(start + done, length - done, dst);
+                if (n <= 0) {
+                    throw new IOException("short transfer " + done + "/" + length + " of " + name);
+                }
+                done += n;
+            }
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+            closeQuietly(afd);
+        }
     }
 
     public static void extractFile(File file, String dir, File output) throws IOException {
         ZipFile zipFile = null;
+        ExecutorService executor = null;
         try {
             zipFile = new ZipFile(file);
             Enumeration<? extends ZipEntry> entries = zipFile.entries();
             String DIR = output.getCanonicalPath();
+            List<ZipEntry> targets = new ArrayList<>();
             while (entries.hasMoreElements()) {
                 ZipEntry entry = entries.nextElement();
                 if (entry.getName().startsWith(dir)) {
@@ -86,11 +136,44 @@ public class FileUtils {
                     if (!canonicalPath.startsWith(DIR)) {
                         throw new IOException("security path " + entry.getName());
                     }
-                    target.getParentFile().mkdirs();
-                    copyAndClose(zipFile.getInputStream(entry), new FileOutputStream(target));
+                    targets.add(entry);
+                }
+            }
+            if (targets.isEmpty()) {
+                return;
+            }
+            int threads = Math.min(targets.size(), Math.min(EXTRACT_MAX_THREAD,
+                    Runtime.getRuntime().availableProcessors()));
+            executor = Executors.newFixedThreadPool(threads);
+            List<Future<?>> futures = new ArrayList<>(targets.size());
+            final ZipFile zip = zipFile;
+            for (final ZipEntry entry : targets) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        extractEntry(zip, entry, new File(output, entry.getName()));
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted extracting " + file, e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException("extract " + file + " failed", cause);
                 }
             }
         } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
             if (zipFile != null) {
                 try {
                     zipFile.close();
@@ -102,6 +185,38 @@ public class FileUtils {
         }
     }
 
+    private static void extractEntry(ZipFile zipFile, ZipEntry entry, File target) throws IOException {
+        if (entry.getCrc() != -1 && target.length() == entry.getSize() && crc32(target) == entry.getCrc()) {
+            if (DEBUG) Slog.d(TAG, "skip unchanged %s", entry.getName());
+            return;
+        }
+        target.getParentFile().mkdirs();
+        File tmp = new File(target.getPath() + ".tmp");
+        copyAndClose(zipFile.getInputStream(entry), new FileOutputStream(tmp), EXTRACT_BUFFER);
+        if (!tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IOException("rename failed " + target);
+        }
+    }
+
+    private static long crc32(File file) {
+        CRC32 crc = new CRC32();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] buffer = new byte[EXTRACT_BUFFER];
+            int c;
+            while ((c = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, c);
+            }
+            return crc.getValue();
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
 
     public static boolean deleteQuietly(File scratch) {
         try {
@@ -152,14 +267,25 @@ public class FileUtils {
 
     }
 
+    /**
+     * writes through a synced temp file and a rename, readers see either the old or the new content.
+     */
     public static void writeString(File file, String json) throws IOException {
         FileOutputStream outputStream = null;
+        File tmp = new File(file.getPath() + ".tmp");
         try {
             file.getParentFile().mkdirs();
-            outputStream = new FileOutputStream(file);
+            outputStream = new FileOutputStream(tmp);
             outputStream.write(json.getBytes());
+            outputStream.getFD().sync();
+            outputStream.close();
+            outputStream = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rename failed " + file);
+            }
         } finally {
             closeQuietly(outputStream);
+            tmp.delete();
         }
     }
 }
@@ -0,0 +1,153 @@
+package com.hack.utils;
+
+import com.hack.Slog;
+
+import java.io.PrintWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed size pool that records how long tasks wait in the queue and run.
+ * With callerRuns the queue is bounded and a task that doesn't fit runs on the submitting thread,
+ * which slows the producer down rather than letting the queue grow or dropping work. Pools that
+ * are fed from the main thread must not do that; their queue grows past the size instead, with a
+ * warning each time it does.
+ */
+class InstrumentedExecutor extends ThreadPoolExecutor {
+    private static final String TAG = InstrumentedExecutor.class.getSimpleName();
+
+    private final String mName;
+    private final int mQueueSize;
+    private final boolean mCallerRuns;
+    private final AtomicBoolean mOverflowing = new AtomicBoolean();
+
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mWaitNanos = new AtomicLong();
+    private final AtomicLong mMaxWaitNanos = new AtomicLong();
+    private final AtomicLong mRunNanos = new AtomicLong();
+    private final AtomicLong mMaxRunNanos = new AtomicLong();
+
+    InstrumentedExecutor(String name, int threads, int queueSize, int threadPriority, boolean callerRuns) {
+        super(threads, threads, 5L, TimeUnit.SECONDS,
+                callerRuns ? new ArrayBlockingQueue<Runnable>(queueSize) : new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory(name, threadPriority), new CallerRunsPolicy());
+        mName = name;
+        mQueueSize = queueSize;
+        mCallerRuns = callerRuns;
+        allowCoreThreadTimeOut(true);
+        final RejectedExecutionHandler callerRunsPolicy = getRejectedExecutionHandler();
+        setRejectedExecutionHandler(new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                mRejected.incrementAndGet();
+                callerRunsPolicy.rejectedExecution(r, executor);
+            }
+        });
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        mSubmitted.incrementAndGet();
+        super.execute(new TimedTask(command));
+        if (!mCallerRuns) {
+            int queued = getQueue().size();
+            if (queued > mQueueSize && mOverflowing.compareAndSet(false, true)) {
+                mRejected.incrementAndGet();
+                Slog.w(TAG, "%s queue over %d tasks: %d", mName, mQueueSize, queued);
+            }
+        }
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        if (mOverflowing.get() && getQueue().size() <= mQueueSize / 2) {
+            mOverflowing.set(false);
+        }
+    }
+
+    private void record(long waitNanos, long runNanos) {
+        mCompleted.incrementAndGet();
+        mWaitNanos.addAndGet(waitNanos);
+        mRunNanos.addAndGet(runNanos);
+        updateMax(mMaxWaitNanos, waitNanos);
+        updateMax(mMaxRunNanos, runNanos);
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        long completed = mCompleted.get();
+        writer.print("  " + mName + ": threads=" + getPoolSize() + "/" + getMaximumPoolSize()
+                + " active=" + getActiveCount()
+                + " queued=" + getQueue().size() + "/" + mQueueSize
+                + " submitted=" + mSubmitted.get() + " completed=" + completed
+                + (mCallerRuns ? " callerRuns=" : " overflows=") + mRejected.get());
+        if (completed > 0) {
+            writer.print(" wait avg=" + toMicros(mWaitNanos.get() / completed) + "us max=" + toMicros(mMaxWaitNanos.get()) + "us"
+                    + " run avg=" + toMicros(mRunNanos.get() / completed) + "us max=" + toMicros(mMaxRunNanos.get()) + "us");
+        }
+        writer.println();
+    }
+
+    private static long toMicros(long nanos) {
+        return nanos / 1000;
+    }
+
+    private final class TimedTask implements Runnable {
+        private final Runnable mTask;
+        private final long mQueuedAt = System.nanoTime();
+
+        TimedTask(Runnable task) {
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                mTask.run();
+            } finally {
+                record(start - mQueuedAt, System.nanoTime() - start);
+            }
+        }
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final int mPriority;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String name, int priority) {
+            mName = name;
+            mPriority = priority;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    android.os.Process.setThreadPriority(mPriority);
+                    r.run();
+                }
+            }, mName + "-" + mCount.incrementAndGet());
+        }
+    }
+}
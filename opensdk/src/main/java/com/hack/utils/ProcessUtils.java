@@ -3,6 +3,7 @@ package com.hack.utils;
 import static com.hack.Features.DEBUG;
 
 import android.app.ActivityManager;
+import android.app.Application;
 import android.content.Context;
 import android.os.Build;
 import android.os.Process;
@@ -14,8 +15,8 @@ import java.io.InputStreamReader;
 public class ProcessUtils {
     private static boolean sbInit;
     private static boolean sIs64bit;
-    private static String sCurProcessName;
-    private static ProcessType sProcessType = ProcessType.TYPE_UNKNOWN;
+    private static volatile String sCurProcessName;
+    private static volatile ProcessType sProcessType = ProcessType.TYPE_UNKNOWN;
     public enum ProcessType {
         TYPE_UNKNOWN,
         TYPE_CLIENT,
@@ -59,25 +60,41 @@ public class ProcessUtils {
         return sProcessType == ProcessType.TYPE_APP;
     }
 
+    /**
+     * resolves the name without a binder call when possible:
+     * Application.getProcessName() on P+, then /proc/self/cmdline, the running process list last.
+     */
     public static String getCurProcessName(Context context) {
         String procName = sCurProcessName;
         if (!TextUtils.isEmpty(procName)) {
             return procName;
         }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            procName = Application.getProcessName();
+        }
+        if (TextUtils.isEmpty(procName)) {
+            procName = getProcessNameFromProc(-1);
+        }
+        if (TextUtils.isEmpty(procName)) {
+            procName = getProcessNameFromActivityManager(context);
+        }
+        sCurProcessName = procName;
+        return procName;
+    }
+
+    private static String getProcessNameFromActivityManager(Context context) {
         try {
             int pid = Process.myPid();
             ActivityManager mActivityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
             for (ActivityManager.RunningAppProcessInfo info : mActivityManager.getRunningAppProcesses()) {
                 if (info.pid == pid) {
-                    sCurProcessName = info.processName;
-                    return sCurProcessName;
+                    return info.processName;
                 }
             }
         } catch (Exception e) {
             if (DEBUG) e.printStackTrace();
         }
-        sCurProcessName = getProcessNameFromProc(-1);
-        return sCurProcessName;
+        return null;
     }
 
     public static String getProcessNameFromProc(int pid) {
@@ -88,7 +105,7 @@ public class ProcessUtils {
         try {
             cmdlineReader = new BufferedReader(new InputStreamReader(
                     new FileInputStream(
-                            "/proc/" + pid + "/cmdline"),
+                            pid == Process.myPid() ? "/proc/self/cmdline" : "/proc/" + pid + "/cmdline"),
                     "iso-8859-1"));
             int c;
             StringBuilder processName = new StringBuilder();
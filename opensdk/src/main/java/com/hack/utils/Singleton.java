@@ -27,16 +27,23 @@ public abstract class Singleton<T> {
     public Singleton() {
     }
 
-    private T mInstance;
+    private volatile T mInstance;
 
     protected abstract T create();
 
     public final T get() {
+        // fast path: once published, readers never touch the monitor.
+        T instance = mInstance;
+        if (instance != null) {
+            return instance;
+        }
         synchronized (this) {
-            if (mInstance == null) {
-                mInstance = create();
+            instance = mInstance;
+            if (instance == null) {
+                instance = create();
+                mInstance = instance;
             }
-            return mInstance;
+            return instance;
         }
     }
-}
\ No newline at end of file
+}
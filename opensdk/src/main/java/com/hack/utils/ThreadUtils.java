@@ -2,20 +2,31 @@ package com.hack.utils;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Process;
 
+import java.io.PrintWriter;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
+/**
+ * Background work goes to one of three pools so a slow task of one kind can't hold up the others:
+ * io for disk and binder work, cpu for computation, and latency critical for short tasks
+ * something is waiting on. The cpu and latency critical pools have a bounded queue and run overflow
+ * on the caller; the io pool is posted to from the main thread, so its queue grows instead.
+ */
 public class ThreadUtils {
     private static Thread sMainThread;
     private static Handler sMainThreadHandler;
-    private static volatile ThreadPoolExecutor sThreadExecutor;
+    private static volatile InstrumentedExecutor sIoExecutor;
+    private static volatile InstrumentedExecutor sCpuExecutor;
+    private static volatile InstrumentedExecutor sLatencyCriticalExecutor;
 
     public static final int ASYNC_MAX_THREAD = 4;
+    private static final int IO_QUEUE_SIZE = 128;
+    private static final int CPU_QUEUE_SIZE = 64;
+    private static final int LATENCY_CRITICAL_THREAD = 2;
+    private static final int LATENCY_CRITICAL_QUEUE_SIZE = 16;
 
     static {
         sMainThread = Looper.getMainLooper().getThread();
@@ -46,21 +57,21 @@ public class ThreadUtils {
     }
 
     /**
-     * Posts runnable in background using shared background thread pool.
+     * Posts runnable in background using the io pool.
      *
      * @Return A future of the task that can be monitored for updates or cancelled.
      */
     public static Future postOnBackgroundThread(Runnable runnable) {
-        return getThreadExecutor().submit(runnable);
+        return getIoExecutor().submit(runnable);
     }
 
     /**
-     * Posts callable in background using shared background thread pool.
+     * Posts callable in background using the io pool.
      *
      * @Return A future of the task that can be monitored for updates or cancelled.
      */
     public static Future postOnBackgroundThread(Callable callable) {
-        return getThreadExecutor().submit(callable);
+        return getIoExecutor().submit(callable);
     }
 
     /**
@@ -70,20 +81,63 @@ public class ThreadUtils {
         getUiThreadHandler().post(runnable);
     }
 
-    private static ExecutorService getThreadExecutor() {
-        if (sThreadExecutor == null) {
+    /**
+     * Returns the pool for blocking disk and binder work.
+     */
+    public static ExecutorService getIoExecutor() {
+        if (sIoExecutor == null) {
+            synchronized (ThreadUtils.class) {
+                if (sIoExecutor == null) {
+                    sIoExecutor = new InstrumentedExecutor("hack-io", ASYNC_MAX_THREAD, IO_QUEUE_SIZE,
+                            Process.THREAD_PRIORITY_BACKGROUND, false);
+                }
+            }
+        }
+        return sIoExecutor;
+    }
+
+    /**
+     * Returns the pool for computation, sized to the cpu count.
+     */
+    public static ExecutorService getCpuExecutor() {
+        if (sCpuExecutor == null) {
             synchronized (ThreadUtils.class) {
-                if (sThreadExecutor == null) {
+                if (sCpuExecutor == null) {
                     int coreNum = Runtime.getRuntime().availableProcessors();
                     if (coreNum > ASYNC_MAX_THREAD) coreNum = ASYNC_MAX_THREAD;
+                    sCpuExecutor = new InstrumentedExecutor("hack-cpu", coreNum, CPU_QUEUE_SIZE,
+                            Process.THREAD_PRIORITY_DEFAULT, true);
+                }
+            }
+        }
+        return sCpuExecutor;
+    }
 
-                    sThreadExecutor = new ThreadPoolExecutor(coreNum, coreNum,
-                            5L, TimeUnit.SECONDS,
-                            new LinkedBlockingQueue<Runnable>());
-                    sThreadExecutor.allowCoreThreadTimeOut(true);
+    /**
+     * Returns the pool for short tasks that something is waiting on, e.g. during process start.
+     */
+    public static ExecutorService getLatencyCriticalExecutor() {
+        if (sLatencyCriticalExecutor == null) {
+            synchronized (ThreadUtils.class) {
+                if (sLatencyCriticalExecutor == null) {
+                    sLatencyCriticalExecutor = new InstrumentedExecutor("hack-urgent", LATENCY_CRITICAL_THREAD,
+                            LATENCY_CRITICAL_QUEUE_SIZE, Process.THREAD_PRIORITY_FOREGROUND, true);
                 }
             }
         }
-        return sThreadExecutor;
+        return sLatencyCriticalExecutor;
+    }
+
+    /**
+     * Prints queue depth, wait and run times of the pools created so far.
+     */
+    public static void dump(PrintWriter writer) {
+        writer.println("ThreadUtils executors:");
+        InstrumentedExecutor[] executors = {sIoExecutor, sCpuExecutor, sLatencyCriticalExecutor};
+        for (InstrumentedExecutor executor : executors) {
+            if (executor != null) {
+                executor.dump(writer);
+            }
+        }
     }
 }
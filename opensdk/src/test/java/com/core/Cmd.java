@@ -0,0 +1,12 @@
+package com.core;
+
+/**
+ * stand-in for the engine entry point that com.hack.opensdk.Cmd binds to, answers every
+ * command with the number of arguments it got.
+ */
+public class Cmd {
+
+    public static Object exec(int cmd, Object... args) {
+        return args.length;
+    }
+}
@@ -0,0 +1,78 @@
+package com.hack;
+
+import java.lang.reflect.Method;
+
+/**
+ * single threaded JVM timing and allocation of a call, for the opensdk benchmarks.
+ *
+ * Allocation comes from HotSpot's per thread counter, reached by reflection since the unit test
+ * classpath compiles against android.jar, which has no java.lang.management.
+ */
+public final class Measure {
+    private static final int WARMUP = 20_000;
+    private static final int ITERATIONS = 200_000;
+
+    private static final Object sThreadBean;
+    private static final Method sAllocatedBytes;
+
+    static {
+        Object bean = null;
+        Method allocatedBytes = null;
+        try {
+            bean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            allocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+        } catch (ReflectiveOperationException | RuntimeException ignore) {
+            // not HotSpot, allocation is reported as NaN
+        }
+        sThreadBean = bean;
+        sAllocatedBytes = allocatedBytes;
+    }
+
+    public static final class Result {
+        public final double nanosPerCall;
+        /** NaN when the JVM doesn't count allocations */
+        public final double bytesPerCall;
+
+        Result(double nanosPerCall, double bytesPerCall) {
+            this.nanosPerCall = nanosPerCall;
+            this.bytesPerCall = bytesPerCall;
+        }
+    }
+
+    private Measure() {
+    }
+
+    /**
+     * run {@code call} after a warmup and print its time and allocation per call.
+     */
+    public static Result run(String name, Runnable call) {
+        for (int i = 0; i < WARMUP; i++) {
+            call.run();
+        }
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            call.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - bytes;
+        Result result = new Result((double) elapsed / ITERATIONS,
+                bytes < 0 ? Double.NaN : (double) allocated / ITERATIONS);
+        System.out.println(String.format("%s: %.1f ns/call, %.1f B/call",
+                name, result.nanosPerCall, result.bytesPerCall));
+        return result;
+    }
+
+    private static long allocatedBytes() {
+        if (sThreadBean == null || sAllocatedBytes == null) {
+            return -1;
+        }
+        try {
+            return (Long) sAllocatedBytes.invoke(sThreadBean, Thread.currentThread().getId());
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return -1;
+        }
+    }
+}
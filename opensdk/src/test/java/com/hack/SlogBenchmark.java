@@ -0,0 +1,51 @@
+package com.hack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * time and allocation of {@link Slog} calls below and above the level, fixed arity against
+ * varargs against String.format; prints ns and bytes per call. Log itself is the unit test stub,
+ * so only the formatting is measured. Numbers are for comparing changes on one machine.
+ */
+public class SlogBenchmark {
+    private static final String TAG = "SlogBenchmark";
+
+    private final int mLevel = Slog.getLevel();
+
+    @After
+    public void restoreLevel() {
+        Slog.setLevel(mLevel);
+    }
+
+    @Test
+    public void formatsLikeStringFormat() {
+        Object[] args = {"pkg", 42, null};
+        assertEquals(String.format("%s user %d %s 100%%", args), Slog.format("%s user %d %s 100%%", args, 3));
+        assertEquals("no args %d", Slog.format("no args %d", args, 0));
+        assertEquals(String.format("%x", 255), Slog.format("%x", new Object[]{255}, 1));
+    }
+
+    @Test
+    public void droppedCalls() {
+        Slog.setLevel(Log.INFO);
+        Measure.Result fixed = Measure.run("Slog.d dropped, 2 args", () -> Slog.d(TAG, "exec %d %s", 7, TAG));
+        Measure.run("Slog.d dropped, 4 args varargs", () -> Slog.d(TAG, "%s %s %s %s", TAG, TAG, TAG, TAG));
+        Measure.run("Slog.d dropped, supplier", () -> Slog.d(TAG, () -> "exec " + TAG));
+        // a dropped fixed arity call builds nothing
+        assertTrue(Double.isNaN(fixed.bytesPerCall) || fixed.bytesPerCall < 1);
+    }
+
+    @Test
+    public void loggedCalls() {
+        Slog.setLevel(Log.VERBOSE);
+        Measure.run("Slog.d logged, 2 args", () -> Slog.d(TAG, "exec %d %s", 7, TAG));
+        Measure.run("Slog.d logged, 4 args varargs", () -> Slog.d(TAG, "%s %s %s %s", TAG, TAG, TAG, TAG));
+        Measure.run("String.format, 2 args", () -> Log.d(TAG, String.format("exec %d %s", 7, TAG)));
+    }
+}
@@ -0,0 +1,41 @@
+package com.hack.opensdk;
+
+import static org.junit.Assert.assertEquals;
+
+import com.hack.Measure;
+
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+
+/**
+ * JVM timing and allocation of {@link Cmd} dispatch against the stub engine in the test sources,
+ * fixed arity against varargs against a bare reflective call; prints ns and bytes per call.
+ * Numbers are for comparing changes on one machine, ART's reflection costs differ.
+ */
+public class CmdBenchmark {
+
+    @Test
+    public void dispatch() throws Exception {
+        final Cmd cmd = Cmd.INSTANCE();
+        assertEquals(0, cmd.execInt(1));
+        assertEquals(2, cmd.execInt(1, "a", "b"));
+        assertEquals(4, cmd.execInt(1, "a", "b", "c", "d"));
+
+        final Object[] args = {"a", "b"};
+        final Method exec = Class.forName("com.core.Cmd").getDeclaredMethod("exec", int.class, Object[].class);
+        Measure.run("Method.invoke(null, cmd, args)", () -> invoke(exec, args));
+        Measure.run("Cmd.execInt(cmd)", () -> cmd.execInt(1));
+        Measure.run("Cmd.execInt(cmd, a, b)", () -> cmd.execInt(1, "a", "b"));
+        Measure.run("Cmd.execInt(cmd, a, b, c, d)", () -> cmd.execInt(1, "a", "b", "c", "d"));
+        Measure.run("Cmd.execLong(cmd, a)", () -> cmd.execLong(1, "a"));
+    }
+
+    private static void invoke(Method exec, Object[] args) {
+        try {
+            exec.invoke(null, 1, args);
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
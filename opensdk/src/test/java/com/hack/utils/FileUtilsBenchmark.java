@@ -0,0 +1,230 @@
+package com.hack.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * JVM timing of the engine extraction steps of a first start; prints milliseconds per run.
+ *
+ * The lib/ unpacking runs {@link FileUtils#extractFile} itself, cold, again over unchanged files
+ * and against the serial 4 KB copy it replaced. The jar copy can't run here since it reads the
+ * asset through AssetManager.openFd, so the same FileChannel.transferTo over a region of a file
+ * is timed against a 4 KB stream copy instead. Numbers depend on the disk and page cache of the
+ * machine and are for comparing changes on one machine, not a device estimate.
+ */
+public class FileUtilsBenchmark {
+    private static final int LIBS = 8;
+    private static final int LIB_SIZE = 2 * 1024 * 1024;
+    private static final int JAR_SIZE = 16 * 1024 * 1024;
+    private static final int RUNS = 5;
+
+    private File mDir;
+    private File mApk;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("extract", "");
+        mDir.delete();
+        mDir.mkdirs();
+        mApk = new File(mDir, "base.apk");
+        Random random = new Random(1);
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(mApk));
+        try {
+            zip.putNextEntry(new ZipEntry("classes.dex"));
+            zip.write(new byte[4096]);
+            for (int i = 0; i < LIBS; i++) {
+                zip.putNextEntry(new ZipEntry("lib/arm64-v8a/lib" + i + ".so"));
+                zip.write(library(random));
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(mDir);
+    }
+
+    @Test
+    public void extractLibraries() throws IOException {
+        long serial = 0;
+        long cold = 0;
+        long unchanged = 0;
+        for (int run = 0; run < RUNS; run++) {
+            File serialOut = new File(mDir, "serial" + run);
+            long start = System.nanoTime();
+            extractSerially(mApk, "lib/", serialOut);
+            serial += System.nanoTime() - start;
+
+            File out = new File(mDir, "out" + run);
+            start = System.nanoTime();
+            FileUtils.extractFile(mApk, "lib/", out);
+            cold += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            FileUtils.extractFile(mApk, "lib/", out);
+            unchanged += System.nanoTime() - start;
+            assertExtracted(out);
+        }
+        report("lib/ serial 4 KB copy", serial);
+        report("lib/ FileUtils.extractFile", cold);
+        report("lib/ FileUtils.extractFile, unchanged", unchanged);
+    }
+
+    @Test
+    public void copyJar() throws IOException {
+        File source = new File(mDir, "apk");
+        // the jar sits at an offset inside the apk, as a stored asset does
+        int offset = 4096;
+        RandomAccessFile file = new RandomAccessFile(source, "rw");
+        try {
+            byte[] block = new byte[1024 * 1024];
+            new Random(2).nextBytes(block);
+            file.setLength(offset + JAR_SIZE);
+            file.seek(offset);
+            for (int i = 0; i < JAR_SIZE / block.length; i++) {
+                file.write(block);
+            }
+        } finally {
+            file.close();
+        }
+        long stream = 0;
+        long transfer = 0;
+        for (int run = 0; run < RUNS; run++) {
+            File target = new File(mDir, "stream.jar");
+            long start = System.nanoTime();
+            FileInputStream in = new FileInputStream(source);
+            in.skip(offset);
+            copyLimited(in, new FileOutputStream(target), JAR_SIZE);
+            stream += System.nanoTime() - start;
+            assertEquals(JAR_SIZE, target.length());
+
+            target = new File(mDir, "transfer.jar");
+            start = System.nanoTime();
+            transfer(source, offset, JAR_SIZE, target);
+            transfer += System.nanoTime() - start;
+            assertEquals(JAR_SIZE, target.length());
+        }
+        report("jar 4 KB stream copy", stream);
+        report("jar FileChannel.transferTo", transfer);
+    }
+
+    private static byte[] library(Random random) {
+        // half random, half zeros, so deflate has some work to do either way
+        byte[] data = new byte[LIB_SIZE];
+        byte[] noise = new byte[LIB_SIZE / 2];
+        random.nextBytes(noise);
+        System.arraycopy(noise, 0, data, 0, noise.length);
+        return data;
+    }
+
+    private void assertExtracted(File out) throws IOException {
+        ZipFile zip = new ZipFile(mApk);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            int count = 0;
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                File target = new File(out, entry.getName());
+                if (!entry.getName().startsWith("lib/")) {
+                    assertFalse(target.exists());
+                    continue;
+                }
+                assertArrayEquals(entry.getName(), read(zip.getInputStream(entry)), read(new FileInputStream(target)));
+                count++;
+            }
+            assertEquals(LIBS, count);
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * the extraction as it was before, one entry after the other through a 4 KB buffer
+     */
+    private static void extractSerially(File file, String dir, File output) throws IOException {
+        ZipFile zip = new ZipFile(file);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.getName().startsWith(dir) || entry.isDirectory()) {
+                    continue;
+                }
+                File target = new File(output, entry.getName());
+                target.getParentFile().mkdirs();
+                FileUtils.copyAndClose(zip.getInputStream(entry), new FileOutputStream(target));
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static void copyLimited(InputStream in, FileOutputStream out, int length) throws IOException {
+        try {
+            byte[] buffer = new byte[4096];
+            int left = length;
+            int c;
+            while (left > 0 && (c = in.read(buffer, 0, Math.min(buffer.length, left))) != -1) {
+                out.write(buffer, 0, c);
+                left -= c;
+            }
+        } finally {
+            FileUtils.closeQuietly(in);
+            FileUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * the copy loop of {@link FileUtils#extractAsset} for a stored asset
+     */
+    private static void transfer(File source, long start, long length, File target) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            FileChannel src = in.getChannel();
+            FileChannel dst = out.getChannel();
+            long done = 0;
+            while (done < length) {
+                long n = src.transferTo(start + done, length - done, dst);
+                if (n <= 0) {
+                    throw new IOException("short transfer " + done + "/" + length);
+                }
+                done += n;
+            }
+        } finally {
+            FileUtils.closeQuietly(in);
+            FileUtils.closeQuietly(out);
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileUtils.copyAndClose(in, out);
+        return out.toByteArray();
+    }
+
+    private static void report(String name, long elapsed) {
+        System.out.println(String.format("%s: %.1f ms/run", name, elapsed / 1e6 / RUNS));
+    }
+}
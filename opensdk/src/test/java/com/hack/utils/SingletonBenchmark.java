@@ -0,0 +1,119 @@
+package com.hack.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * {@link Singleton#get()} from several threads at once, against the monitor-per-call version it
+ * replaced; prints the wall time over the gets each thread makes. Numbers are for comparing
+ * changes on one machine.
+ */
+public class SingletonBenchmark {
+    private static final int THREADS = 8;
+    private static final int GETS = 2_000_000;
+
+    @Test
+    public void createsOnceUnderContention() throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        final Singleton<Object> singleton = new Singleton<Object>() {
+            @Override
+            protected Object create() {
+                created.incrementAndGet();
+                return new Object();
+            }
+        };
+        final Object[] seen = new Object[THREADS];
+        runThreads(THREADS, index -> seen[index] = singleton.get());
+        assertEquals(1, created.get());
+        for (Object instance : seen) {
+            assertSame(seen[0], instance);
+        }
+    }
+
+    @Test
+    public void contention() throws Exception {
+        final Singleton<Object> singleton = new Singleton<Object>() {
+            @Override
+            protected Object create() {
+                return new Object();
+            }
+        };
+        final LockingSingleton locking = new LockingSingleton();
+        for (int threads = 1; threads <= THREADS; threads *= 2) {
+            report("Singleton.get", threads, time(threads, singleton::get));
+            report("synchronized get", threads, time(threads, locking::get));
+        }
+    }
+
+    private interface Body {
+        void run(int index);
+    }
+
+    private static long time(int threads, final Supplier<Object> get) throws Exception {
+        // warm up on the calling thread first
+        for (int i = 0; i < GETS / 10; i++) {
+            get.get();
+        }
+        long start = System.nanoTime();
+        runThreads(threads, index -> {
+            Object last = null;
+            for (int i = 0; i < GETS; i++) {
+                last = get.get();
+            }
+            assertSame(get.get(), last);
+        });
+        return System.nanoTime() - start;
+    }
+
+    private static void runThreads(int count, final Body body) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                    body.run(index);
+                } catch (Throwable e) {
+                    synchronized (failure) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+    }
+
+    private static void report(String name, int threads, long elapsed) {
+        System.out.println(String.format("%s, %d threads: %.2f ns/get",
+                name, threads, (double) elapsed / GETS));
+    }
+
+    /**
+     * the previous implementation, which took the monitor on every call
+     */
+    private static final class LockingSingleton {
+        private Object mInstance;
+
+        synchronized Object get() {
+            if (mInstance == null) {
+                mInstance = new Object();
+            }
+            return mInstance;
+        }
+    }
+}